@@ -0,0 +1,79 @@
+package com.hephaestus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hephaestus.BatchPlanner;
+import com.hephaestus.BestFitDecreasingPlanner;
+import com.hephaestus.GreedyBatchPlanner;
+import com.hephaestus.ResourceTypeGroupingPlanner;
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * The batch assembly step of the aggregator, which plans the whole pending pool every time a
+ * file arrives. File sizes are spread between SUGGESTED_MIN_FILE_SIZE and 2M lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchPlannerBenchmark {
+    private static final long MAX_BATCH_SIZE = 100_000_000;
+    private static final String[] TYPES = { "Patient", "Practitioner", "Encounter", "Observation", null };
+
+    @Param({ "100", "1000", "5000" })
+    public int pendingFiles;
+
+    @Param({ "best-fit-decreasing", "greedy", "grouped" })
+    public String planner;
+
+    private BatchPlanner batchPlanner;
+    private List<NdJsonReference> pending;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        batchPlanner = switch (planner) {
+            case "greedy" -> new GreedyBatchPlanner();
+            case "grouped" -> new ResourceTypeGroupingPlanner(new BestFitDecreasingPlanner());
+            default -> new BestFitDecreasingPlanner();
+        };
+
+        // fixed seed, every run plans the same pool
+        Random random = new Random(42);
+        pending = new ArrayList<>();
+        for (int i = 0; i < pendingFiles; i++) {
+            NdJsonReference file = new NdJsonReference();
+            file.filename = "file-" + i + ".ndjson";
+            file.lineCount = 20_000 + random.nextInt(2_000_000);
+            file.resourceType = TYPES[random.nextInt(TYPES.length)];
+            pending.add(file);
+        }
+    }
+
+    @Benchmark
+    public List<List<NdJsonReference>> plan() {
+        return batchPlanner.plan(pending, MAX_BATCH_SIZE, MAX_BATCH_SIZE * 95 / 100, false);
+    }
+
+    @Benchmark
+    public List<List<NdJsonReference>> planAndFlush() {
+        return batchPlanner.plan(pending, MAX_BATCH_SIZE, MAX_BATCH_SIZE * 95 / 100, true);
+    }
+}
@@ -0,0 +1,77 @@
+package com.hephaestus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.hephaestus.models.BatchStatusResponse;
+
+/*
+ * Merging the output and error entries of an $import status response, which TimerStatusCheck does
+ * for every completed job. A 100M resource batch of 20k line files reports about 5000 inputs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchStatusResponseBenchmark {
+    @Param({ "100", "5000", "50000" })
+    public int inputs;
+
+    // share of inputs that also report errors
+    @Param({ "0.1" })
+    public double errorRate;
+
+    private BatchStatusResponse response;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        List<BatchStatusResponse.Output> outputs = new ArrayList<>();
+        List<BatchStatusResponse.Error> errors = new ArrayList<>();
+        int errorEvery = (int) Math.max(1, Math.round(1 / errorRate));
+
+        for (int i = 0; i < inputs; i++) {
+            String inputUrl = "https://account.blob.core.windows.net/fhir/file-" + i + ".ndjson";
+
+            BatchStatusResponse.Output output = new BatchStatusResponse.Output();
+            output.setType("Patient");
+            output.setCount(20_000);
+            output.setInputUrl(inputUrl);
+            outputs.add(output);
+
+            if (i % errorEvery == 0) {
+                BatchStatusResponse.Error error = new BatchStatusResponse.Error();
+                error.setType("Patient");
+                error.setCount(3);
+                error.setInputUrl(inputUrl);
+                error.setUrl("https://account.blob.core.windows.net/fhirlogs/file-" + i + ".error.ndjson");
+                errors.add(error);
+            }
+        }
+
+        response = new BatchStatusResponse();
+        response.setOutput(outputs);
+        response.setError(errors);
+    }
+
+    @Benchmark
+    public List<Pair<BatchStatusResponse.Output, BatchStatusResponse.Error>> getAllResults() {
+        return response.getAllResults();
+    }
+}
@@ -0,0 +1,78 @@
+package com.hephaestus.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hephaestus.models.FhirImportRequest;
+
+/*
+ * Serializing the $import Parameters body that ImportBatch sends, one input with a type and a url
+ * part per file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FhirImportRequestBenchmark {
+    @Param({ "1000", "10000", "50000" })
+    public int inputs;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private FhirImportRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        request = new FhirImportRequest();
+        request.setResourceType("Parameters");
+
+        List<FhirImportRequest.Parameter> parameters = new ArrayList<>();
+        FhirImportRequest.Parameter inputFormat = new FhirImportRequest.Parameter();
+        inputFormat.setName("inputFormat");
+        inputFormat.setValueString("application/fhir+ndjson");
+        parameters.add(inputFormat);
+
+        FhirImportRequest.Parameter mode = new FhirImportRequest.Parameter();
+        mode.setName("mode");
+        mode.setValueString("InitialLoad");
+        parameters.add(mode);
+
+        for (int i = 0; i < inputs; i++) {
+            FhirImportRequest.Parameter.Part type = new FhirImportRequest.Parameter.Part();
+            type.setName("type");
+            type.setValueString("Observation");
+
+            FhirImportRequest.Parameter.Part url = new FhirImportRequest.Parameter.Part();
+            url.setName("url");
+            url.setValueUri("https://account.blob.core.windows.net/fhir/file-" + i + ".ndjson");
+
+            FhirImportRequest.Parameter input = new FhirImportRequest.Parameter();
+            input.setName("input");
+            input.setPart(new FhirImportRequest.Parameter.Part[] { type, url });
+            parameters.add(input);
+        }
+        request.setParameter(parameters.toArray(new FhirImportRequest.Parameter[0]));
+    }
+
+    @Benchmark
+    public String serialize() throws JsonProcessingException {
+        return mapper.writeValueAsString(request);
+    }
+}
@@ -0,0 +1,47 @@
+package com.hephaestus.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Deserializing a queue message the way QueueProcessor does, once with a mapper built per message
+ * as it is today and once with a shared mapper.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NdJsonReferenceBenchmark {
+    private static final String MESSAGE = "{\"filename\":\"export/Observation-000123.ndjson\",\"lineCount\":20000,"
+            + "\"isLastFileInRequest\":false}";
+
+    private final ObjectMapper sharedMapper = new ObjectMapper().registerModule(new JavaTimeModule());
+
+    @Benchmark
+    public NdJsonReference deserializeWithNewMapper() throws JsonProcessingException {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(new JavaTimeModule());
+        return objectMapper.readValue(MESSAGE, NdJsonReference.class);
+    }
+
+    @Benchmark
+    public NdJsonReference deserializeWithSharedMapper() throws JsonProcessingException {
+        return sharedMapper.readValue(MESSAGE, NdJsonReference.class);
+    }
+}
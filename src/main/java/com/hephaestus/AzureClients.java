@@ -0,0 +1,259 @@
+package com.hephaestus;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.azure.core.http.HttpHeaders;
+import com.azure.core.http.HttpPipelineCallContext;
+import com.azure.core.http.HttpPipelineNextPolicy;
+import com.azure.core.http.HttpPipelineNextSyncPolicy;
+import com.azure.core.http.HttpResponse;
+import com.azure.core.http.policy.HttpPipelinePolicy;
+import com.azure.core.util.HttpClientOptions;
+import com.azure.data.tables.TableAsyncClient;
+import com.azure.data.tables.TableClient;
+import com.azure.data.tables.TableClientBuilder;
+import com.azure.storage.blob.BlobContainerAsyncClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.BlobServiceAsyncClient;
+import com.azure.storage.blob.BlobServiceClient;
+import com.azure.storage.blob.BlobServiceClientBuilder;
+import com.azure.storage.queue.QueueAsyncClient;
+import com.azure.storage.queue.QueueClientBuilder;
+import com.azure.storage.queue.QueueMessageEncoding;
+
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import reactor.core.publisher.Mono;
+
+/*
+ * Process-wide registry of long-lived clients. Building a TableServiceClient, BlobServiceClient
+ * or HttpClient per invocation costs a new connection pool and TLS handshake every time, so every
+ * function class should get its clients from here instead.
+ *
+ * Each client lives in its own holder class so it is built lazily, exactly once, on first use.
+ */
+public final class AzureClients {
+    // requests sent over an already established shared client, by target
+    private static final AtomicLong tableRequests = new AtomicLong();
+    private static final AtomicLong blobRequests = new AtomicLong();
+    private static final AtomicLong queueRequests = new AtomicLong();
+    private static final AtomicLong fhirRequests = new AtomicLong();
+
+    // the caller's activity and trace context, carried in the Reactor context of async calls
+    private static final String ACTIVITY_KEY = "hephaestus.activity";
+    private static final String TRACE_CONTEXT_KEY = "hephaestus.trace-context";
+
+    private AzureClients() {
+    }
+
+    private static final class StorageHttpHolder {
+        // one netty pool shared by the table and blob clients
+        static final com.azure.core.http.HttpClient HTTP_CLIENT = com.azure.core.http.HttpClient.createDefault(
+                new HttpClientOptions()
+                        .setMaximumConnectionPoolSize(Helper.getIntSetting("STORAGE_MAX_CONNECTIONS", 64))
+                        .setConnectionIdleTimeout(
+                                Duration.ofSeconds(Helper.getIntSetting("HTTP_KEEP_ALIVE_SECONDS", 60))));
+    }
+
+    private static final class TableHolder {
+        static final TableClient TABLE_CLIENT = new TableClientBuilder()
+                .connectionString(Helper.getSetting("FHIR_STORAGE_CONN_STR"))
+                .tableName(Helper.getSetting("FHIR_STORAGE_TABLE"))
+                .httpClient(StorageHttpHolder.HTTP_CLIENT)
+                .addPolicy(new RequestCountingPolicy("table", tableRequests))
+                .buildClient();
+    }
+
+    private static final class TableAsyncHolder {
+        static final TableAsyncClient TABLE_ASYNC_CLIENT = new TableClientBuilder()
+                .connectionString(Helper.getSetting("FHIR_STORAGE_CONN_STR"))
+                .tableName(Helper.getSetting("FHIR_STORAGE_TABLE"))
+                .httpClient(StorageHttpHolder.HTTP_CLIENT)
+                .addPolicy(new RequestCountingPolicy("table", tableRequests))
+                .buildAsyncClient();
+    }
+
+    private static final class BlobHolder {
+        static final BlobServiceClient BLOB_SERVICE_CLIENT = new BlobServiceClientBuilder()
+                .connectionString(Helper.getSetting("FHIR_STORAGE_CONN_STR"))
+                .httpClient(StorageHttpHolder.HTTP_CLIENT)
+                .addPolicy(new RequestCountingPolicy("blob", blobRequests))
+                .buildClient();
+
+        static final BlobContainerClient CONTAINER_CLIENT = BLOB_SERVICE_CLIENT
+                .getBlobContainerClient(Helper.getSetting("FHIR_STORAGE_CONTAINER"));
+    }
+
+    private static final class BlobAsyncHolder {
+        static final BlobServiceAsyncClient BLOB_SERVICE_ASYNC_CLIENT = new BlobServiceClientBuilder()
+                .connectionString(Helper.getSetting("FHIR_STORAGE_CONN_STR"))
+                .httpClient(StorageHttpHolder.HTTP_CLIENT)
+                .addPolicy(new RequestCountingPolicy("blob", blobRequests))
+                .buildAsyncClient();
+
+        static final BlobContainerAsyncClient CONTAINER_ASYNC_CLIENT = BLOB_SERVICE_ASYNC_CLIENT
+                .getBlobContainerAsyncClient(Helper.getSetting("FHIR_STORAGE_CONTAINER"));
+    }
+
+    private static final class QueueAsyncHolder {
+        // the functions host reads and writes queue messages base64 encoded
+        static final QueueAsyncClient QUEUE_ASYNC_CLIENT = new QueueClientBuilder()
+                .connectionString(Helper.getSetting("FHIR_STORAGE_CONN_STR"))
+                .queueName(DurableFunction.QUEUE_NAME)
+                .messageEncoding(QueueMessageEncoding.BASE64)
+                .httpClient(StorageHttpHolder.HTTP_CLIENT)
+                .addPolicy(new RequestCountingPolicy("queue", queueRequests))
+                .buildAsyncClient();
+    }
+
+    private static final class FhirHttpHolder {
+        static {
+            // the JDK client reads its pool settings once, when the first client is created
+            if (System.getProperty("jdk.httpclient.connectionPoolSize") == null) {
+                System.setProperty("jdk.httpclient.connectionPoolSize",
+                        String.valueOf(Helper.getIntSetting("FHIR_MAX_CONNECTIONS", 16)));
+            }
+            if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+                System.setProperty("jdk.httpclient.keepalive.timeout",
+                        String.valueOf(Helper.getIntSetting("HTTP_KEEP_ALIVE_SECONDS", 60)));
+            }
+        }
+
+        static final java.net.http.HttpClient HTTP_CLIENT = java.net.http.HttpClient.newBuilder()
+                .version(java.net.http.HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    // table client bound to FHIR_STORAGE_TABLE
+    public static TableClient getTableClient() {
+        return TableHolder.TABLE_CLIENT;
+    }
+
+    // async table client bound to FHIR_STORAGE_TABLE, sharing the connection pool
+    public static TableAsyncClient getTableAsyncClient() {
+        return TableAsyncHolder.TABLE_ASYNC_CLIENT;
+    }
+
+    public static BlobServiceClient getBlobServiceClient() {
+        return BlobHolder.BLOB_SERVICE_CLIENT;
+    }
+
+    // container client bound to FHIR_STORAGE_CONTAINER
+    public static BlobContainerClient getBlobContainerClient() {
+        return BlobHolder.CONTAINER_CLIENT;
+    }
+
+    // async container client bound to FHIR_STORAGE_CONTAINER, sharing the connection pool
+    public static BlobContainerAsyncClient getBlobContainerAsyncClient() {
+        return BlobAsyncHolder.CONTAINER_ASYNC_CLIENT;
+    }
+
+    // async client of the queue QueueProcessor is triggered by, sharing the connection pool
+    public static QueueAsyncClient getQueueAsyncClient() {
+        return QueueAsyncHolder.QUEUE_ASYNC_CLIENT;
+    }
+
+    // sends a request to the FHIR service over the keep-alive HTTP/2 client shared by all calls
+    public static <T> CompletableFuture<java.net.http.HttpResponse<T>> sendFhirRequest(
+            java.net.http.HttpRequest request, java.net.http.HttpResponse.BodyHandler<T> responseBodyHandler) {
+        fhirRequests.incrementAndGet();
+        return FhirHttpHolder.HTTP_CLIENT.sendAsync(request, responseBodyHandler);
+    }
+
+    /*
+     * Async calls complete on netty threads, where the activity and span of the calling thread
+     * are unknown. Wrapping the call at the function boundary hands both to the storage policy.
+     */
+    public static <T> Mono<T> withCallerContext(Mono<T> call) {
+        String activity = PipelineMetrics.currentActivity();
+        Context traceContext = Context.current();
+        return call.contextWrite(context -> context.put(ACTIVITY_KEY, activity).put(TRACE_CONTEXT_KEY, traceContext));
+    }
+
+    // makes the span the parent of the storage requests the call sends
+    public static <T> Mono<T> withTraceContext(Mono<T> call, Context traceContext) {
+        return call.contextWrite(context -> context.put(TRACE_CONTEXT_KEY, traceContext));
+    }
+
+    // table requests sent so far, read by the load test harness
+    static long getTableRequestCount() {
+        return tableRequests.get();
+    }
+
+    public static void logStatistics(Logger logger) {
+        logger.log(Level.INFO, "Shared client requests - table: {0}, blob: {1}, queue: {2}, fhir: {3}",
+                new Object[] { tableRequests.get(), blobRequests.get(), queueRequests.get(), fhirRequests.get() });
+    }
+
+    /*
+     * Counts every request sent through a shared pipeline. Each one is a request that previously
+     * would have paid for a client and connection pool of its own.
+     */
+    private static final class RequestCountingPolicy implements HttpPipelinePolicy {
+        private final String service;
+        private final AtomicLong counter;
+
+        RequestCountingPolicy(String service, AtomicLong counter) {
+            this.service = service;
+            this.counter = counter;
+        }
+
+        @Override
+        public Mono<HttpResponse> process(HttpPipelineCallContext context, HttpPipelineNextPolicy next) {
+            counter.incrementAndGet();
+            // the response may arrive on another thread, so take the activity and span now
+            String activity = context.getData(ACTIVITY_KEY).map(String.class::cast)
+                    .orElseGet(PipelineMetrics::currentActivity);
+            Span span = startSpan(context, context.getData(TRACE_CONTEXT_KEY).map(Context.class::cast)
+                    .orElseGet(Context::current));
+            return next.process()
+                    .doOnNext(response -> record(context, activity, span, response))
+                    .doOnError(error -> PipelineTracing.end(span, error));
+        }
+
+        @Override
+        public HttpResponse processSync(HttpPipelineCallContext context, HttpPipelineNextSyncPolicy next) {
+            counter.incrementAndGet();
+            Span span = startSpan(context, Context.current());
+            try {
+                HttpResponse response = next.processSync();
+                record(context, PipelineMetrics.currentActivity(), span, response);
+                return response;
+            } catch (RuntimeException e) {
+                PipelineTracing.end(span, e);
+                throw e;
+            }
+        }
+
+        // a child of the caller's span, none when nothing is being traced
+        private Span startSpan(HttpPipelineCallContext context, Context parent) {
+            Span span = PipelineTracing.startChildSpan(service + " " + context.getHttpRequest().getHttpMethod(),
+                    SpanKind.CLIENT, parent);
+            if (span != null) {
+                span.setAttribute("url.path", context.getHttpRequest().getUrl().getPath());
+            }
+            return span;
+        }
+
+        private void record(HttpPipelineCallContext context, String activity, Span span, HttpResponse response) {
+            PipelineMetrics.storageRequest(service, activity,
+                    contentLength(context.getHttpRequest().getHeaders()), contentLength(response.getHeaders()));
+            PipelineTracing.end(span, response.getStatusCode());
+        }
+
+        private static long contentLength(HttpHeaders headers) {
+            String value = headers.getValue("Content-Length");
+            try {
+                return value == null ? 0 : Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package com.hephaestus;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import com.hephaestus.models.AggregatorSettings;
+import com.hephaestus.models.AggregatorState;
+import com.hephaestus.models.BatchReference;
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Assembles registered files into $import batches. The batchAggregator orchestration feeds it
+ * events and persists its state across continueAsNew, but it only talks to its host through
+ * Runtime, so the same logic can be driven outside of an orchestration.
+ *
+ * Files below SUGGESTED_MIN_FILE_SIZE are held in a separate compaction batch until together they
+ * reach that size, then they are merged into one file which is batched in their place. The staging
+ * batch is checkpointed to the table every AGGREGATOR_CHECKPOINT_INTERVAL files or when no file
+ * arrived for AGGREGATOR_IDLE_SECONDS.
+ *
+ * Sealed batches are marked ready and queued in arrival order. At most MAX_CONCURRENT_IMPORTS of
+ * them are initiated at a time, the next one is released when TimerStatusCheck reports that an
+ * initiated batch completed. Batches sealed or released together are saved and submitted in
+ * parallel, at most AGGREGATOR_MAX_FAN_OUT activities at a time, so a backfill with many ready
+ * batches takes as long as its slowest group rather than the sum of all of them. The initiated
+ * batches are recounted from the table every AGGREGATOR_RECONCILE_SECONDS, so a completion that
+ * never arrived can't hold a slot for good. A batch whose save fails leaves its files pending, one
+ * whose submission fails goes back to the head of the queue, both are tried again later.
+ *
+ * Settings are read once per generation by the LoadAggregatorSettings activity, never from
+ * orchestrator code, so a replay can't see a setting change halfway through.
+ */
+public class BatchAggregator {
+    // what the aggregator needs from its host, every call must be replay safe in an orchestration
+    public interface Runtime {
+        <V> V callActivity(String name, Object input, Class<V> returnType);
+
+        /*
+         * Calls the activity once per input in parallel, the results are in the order of the inputs.
+         * A call that failed has a null result, it doesn't fail the calls that went out with it.
+         */
+        <V> List<V> callActivities(String name, List<?> inputs, Class<V> returnType);
+
+        Instant now();
+
+        String instanceId();
+    }
+
+    private final Runtime runtime;
+    private final AggregatorState state;
+
+    // a null state is a first generation, which picks up whatever was persisted before
+    public BatchAggregator(AggregatorState state, Runtime runtime) {
+        this.runtime = runtime;
+
+        // every replay of a generation sees the settings it started with
+        AggregatorSettings settings = runtime.callActivity("LoadAggregatorSettings", null, AggregatorSettings.class);
+
+        if (state == null) {
+            state = new AggregatorState();
+            state.Settings = settings;
+            state.CurrentBatch = runtime.callActivity("LoadBatchReference", "staging", BatchReference.class);
+            state.CompactionBatch = runtime.callActivity("LoadBatchReference", "compacting", BatchReference.class);
+            state.ReadyBatchIds.addAll(List.of(runtime.callActivity("ListBatchIds", "ready", String[].class)));
+            state.InFlightBatchIds.addAll(List.of(runtime.callActivity("ListBatchIds", "initiated", String[].class)));
+            state.ReconciledAt = runtime.now().toEpochMilli();
+            this.state = state;
+            releaseReadyBatches();
+        } else {
+            state.Settings = settings;
+            this.state = state;
+        }
+    }
+
+    // the app settings the aggregator works with, only ever read by an activity
+    public static AggregatorSettings readSettings() {
+        AggregatorSettings settings = new AggregatorSettings();
+        settings.SuggestedMinFileSize = Helper.getIntSetting("SUGGESTED_MIN_FILE_SIZE", 20_000);
+        settings.CompactSmallFiles = Helper.getBooleanSetting("COMPACT_SMALL_FILES", true);
+        settings.MaxBatchSize = Helper.getIntSetting("MAX_BATCH_SIZE", 100_000_000);
+        settings.BatchFillTargetPercent = Helper.getIntSetting("BATCH_FILL_TARGET_PERCENT", 95);
+        settings.BatchPlanner = Helper.getSetting("BATCH_PLANNER");
+        settings.BatchByResourceType = Helper.getBooleanSetting("BATCH_BY_RESOURCE_TYPE", true);
+        settings.BatchMaxHoldSeconds = Helper.getIntSetting("BATCH_MAX_HOLD_SECONDS", 900);
+        settings.MaxConcurrentImports = Helper.getIntSetting("MAX_CONCURRENT_IMPORTS", 4);
+        settings.MaxFanOut = Helper.getIntSetting("AGGREGATOR_MAX_FAN_OUT", 16);
+        settings.CheckpointInterval = Helper.getIntSetting("AGGREGATOR_CHECKPOINT_INTERVAL", 50);
+        settings.EventsPerGeneration = Helper.getIntSetting("AGGREGATOR_EVENTS_PER_GENERATION", 1000);
+        settings.IdleSeconds = Helper.getIntSetting("AGGREGATOR_IDLE_SECONDS", 60);
+        settings.ReconcileSeconds = Helper.getIntSetting("AGGREGATOR_RECONCILE_SECONDS", 300);
+        return settings;
+    }
+
+    public AggregatorState getState() {
+        return state;
+    }
+
+    public AggregatorSettings getSettings() {
+        return state.Settings;
+    }
+
+    public void onFile(NdJsonReference file) {
+        reconcileIfDue();
+        addFile(file);
+    }
+
+    // a completion may be told more than once, the batch only ever holds one slot
+    public void onImportCompleted(String batchId) {
+        state.InFlightBatchIds.remove(batchId);
+        reconcileIfDue();
+        releaseReadyBatches();
+    }
+
+    // things went quiet, seal whatever has waited too long and persist what we have
+    public void onIdle() {
+        reconcileIfDue();
+        releaseReadyBatches();
+        if (holdExpired()) {
+            planBatches(true);
+        }
+        checkpoint();
+    }
+
+    public int uncheckpointedChanges() {
+        return state.UncheckpointedFiles + state.UncheckpointedSmallFiles;
+    }
+
+    private void addFile(NdJsonReference file) {
+        final int suggestedMinFileSize = state.Settings.SuggestedMinFileSize;
+
+        // retry files are small by nature, merged with other files they would lose their attempt count
+        if (state.Settings.CompactSmallFiles && file.retryAttempt == 0 && file.lineCount < suggestedMinFileSize) {
+            state.CompactionBatch.Files.add(file);
+            state.CompactionBatch.TotalResourceCount += file.lineCount;
+            state.UncheckpointedSmallFiles++;
+
+            if (state.CompactionBatch.TotalResourceCount >= suggestedMinFileSize || file.isLastFileInRequest) {
+                flushCompactionBatch();
+            }
+            return;
+        }
+
+        // the request is complete, so small files still waiting for company go in as they are
+        if (file.isLastFileInRequest) {
+            flushCompactionBatch();
+        }
+
+        addToCurrentBatch(file);
+    }
+
+    private void flushCompactionBatch() {
+        List<NdJsonReference> smallFiles = state.CompactionBatch.Files;
+        if (smallFiles.isEmpty()) {
+            return;
+        }
+
+        // there is nothing to gain from copying a single file
+        NdJsonReference merged = smallFiles.size() == 1
+                ? smallFiles.get(0)
+                : runtime.callActivity("CompactFiles", state.CompactionBatch, NdJsonReference.class);
+
+        state.CompactionBatch.Files = new ArrayList<NdJsonReference>();
+        state.CompactionBatch.TotalResourceCount = 0;
+        state.UncheckpointedSmallFiles++;
+
+        addToCurrentBatch(merged);
+    }
+
+    private void addToCurrentBatch(NdJsonReference file) {
+        if (state.CurrentBatch.Files.isEmpty()) {
+            state.PendingSince = runtime.now().toEpochMilli();
+        }
+
+        // add the file to the pending pool
+        state.CurrentBatch.Files.add(file);
+        state.CurrentBatch.TotalResourceCount += file.lineCount;
+        state.UncheckpointedFiles++;
+
+        // last file we will receive then kick off everything that is pending regardless of size
+        planBatches(file.isLastFileInRequest || holdExpired());
+    }
+
+    // seals every batch the planner hands back and drops the files of those that were saved from the pending pool
+    private void planBatches(boolean flush) {
+        final long maxBatchSize = state.Settings.MaxBatchSize;
+        final long fillTarget = maxBatchSize * state.Settings.BatchFillTargetPercent / 100;
+
+        List<List<NdJsonReference>> sealed = BatchPlanner.of(state.Settings.BatchPlanner,
+                state.Settings.BatchByResourceType)
+                .plan(state.CurrentBatch.Files, maxBatchSize, fillTarget, flush);
+        if (sealed.isEmpty()) {
+            return;
+        }
+
+        List<BatchReference> batches = new ArrayList<>();
+        for (List<NdJsonReference> files : sealed) {
+            batches.add(sealBatch(files, maxBatchSize));
+        }
+
+        // the sealed batches don't depend on each other, persist them side by side
+        List<BatchReference> saved = fanOut("SaveBatchReference", batches, BatchReference.class);
+        boolean sealedAny = false;
+        for (int i = 0; i < batches.size(); i++) {
+            // the header is written last, so a failed save left no ready batch behind to import
+            if (saved.get(i) == null) {
+                continue;
+            }
+            BatchReference batch = batches.get(i);
+            state.CurrentBatch.Files.removeAll(batch.Files);
+            state.CurrentBatch.TotalResourceCount -= batch.TotalResourceCount;
+            state.ReadyBatchIds.add(batch.BatchId.toString());
+            sealedAny = true;
+        }
+        if (!sealedAny) {
+            return;
+        }
+
+        if (state.CurrentBatch.Files.isEmpty()) {
+            state.PendingSince = 0;
+        }
+
+        // the sealed files now belong to their own batches, take them out of the staging rows
+        state.UncheckpointedFiles++;
+        checkpoint();
+
+        releaseReadyBatches();
+    }
+
+    // the table knows which batches are still initiated, slots of the others are freed
+    private void reconcileIfDue() {
+        final long intervalMillis = state.Settings.ReconcileSeconds * 1000L;
+        final long now = runtime.now().toEpochMilli();
+        if (intervalMillis <= 0 || now - state.ReconciledAt < intervalMillis) {
+            return;
+        }
+
+        List<String> initiated = List.of(runtime.callActivity("ListBatchIds", "initiated", String[].class));
+        state.ReconciledAt = now;
+        if (!state.InFlightBatchIds.equals(initiated)) {
+            state.InFlightBatchIds.clear();
+            state.InFlightBatchIds.addAll(initiated);
+            releaseReadyBatches();
+        }
+    }
+
+    // files stay pending for at most BATCH_MAX_HOLD_SECONDS, 0 holds them until a batch fills up
+    private boolean holdExpired() {
+        final long maxHoldMillis = state.Settings.BatchMaxHoldSeconds * 1000L;
+        return maxHoldMillis > 0 && state.PendingSince > 0
+                && runtime.now().toEpochMilli() - state.PendingSince >= maxHoldMillis;
+    }
+
+    // how long to wait for the next file, null to wait for as long as it takes
+    public Duration nextTimeout() {
+        Duration timeout = uncheckpointedChanges() > 0 ? Duration.ofSeconds(state.Settings.IdleSeconds) : null;
+
+        final long maxHoldMillis = state.Settings.BatchMaxHoldSeconds * 1000L;
+        if (maxHoldMillis > 0 && state.PendingSince > 0) {
+            long remaining = state.PendingSince + maxHoldMillis - runtime.now().toEpochMilli();
+            Duration untilHoldExpires = Duration.ofMillis(Math.max(1000, remaining));
+            if (timeout == null || untilHoldExpires.compareTo(timeout) < 0) {
+                timeout = untilHoldExpires;
+            }
+        }
+
+        // ready batches wait for a slot, wake up to recount them if no completion arrives
+        final long reconcileMillis = state.Settings.ReconcileSeconds * 1000L;
+        if (reconcileMillis > 0 && !state.ReadyBatchIds.isEmpty()) {
+            long remaining = state.ReconciledAt + reconcileMillis - runtime.now().toEpochMilli();
+            Duration untilReconcile = Duration.ofMillis(Math.max(1000, remaining));
+            if (timeout == null || untilReconcile.compareTo(timeout) < 0) {
+                timeout = untilReconcile;
+            }
+        }
+        return timeout;
+    }
+
+    public void checkpoint() {
+        // keep the returned references, they know which rows are already persisted
+        if (state.UncheckpointedFiles > 0) {
+            state.CurrentBatch = runtime.callActivity("SaveBatchReference", state.CurrentBatch, BatchReference.class);
+            state.UncheckpointedFiles = 0;
+        }
+
+        if (state.UncheckpointedSmallFiles > 0) {
+            state.CompactionBatch = runtime.callActivity("SaveBatchReference", state.CompactionBatch, BatchReference.class);
+            state.UncheckpointedSmallFiles = 0;
+        }
+    }
+
+    // a ready batch of the files, they stay in the pending pool until the batch is saved
+    private BatchReference sealBatch(List<NdJsonReference> files,
+            long maxBatchSize) {
+        BatchReference batch = new BatchReference();
+        batch.BatchId = newBatchId();
+        batch.BatchStatus = "ready";
+        batch.BatchStatusUrl = "";
+        batch.Files = new ArrayList<NdJsonReference>(files);
+        for (NdJsonReference file : files) {
+            batch.TotalResourceCount += file.lineCount;
+            // the batch is traced as part of its first traced file
+            if (batch.Traceparent == null) {
+                batch.Traceparent = file.traceparent;
+            }
+        }
+        batch.FillRatio = (double) batch.TotalResourceCount / maxBatchSize;
+        return batch;
+    }
+
+    /*
+     * Initiates ready batches in order while there are free import slots, 0 means no limit. All
+     * batches that fit in the free slots are submitted together, and the slots are taken once
+     * every submission is back.
+     */
+    private void releaseReadyBatches() {
+        final int maxConcurrentImports = state.Settings.MaxConcurrentImports;
+
+        while (!state.ReadyBatchIds.isEmpty()) {
+            int freeSlots = maxConcurrentImports <= 0 ? state.ReadyBatchIds.size()
+                    : maxConcurrentImports - state.InFlightBatchIds.size();
+            if (freeSlots <= 0) {
+                return;
+            }
+
+            List<String> released = state.ReadyBatchIds.subList(0, Math.min(freeSlots, state.ReadyBatchIds.size()));
+            List<String> batchIds = new ArrayList<>(released);
+            released.clear();
+
+            // each submission loads its batch itself, one that was submitted before is returned as it is
+            List<BatchReference> submitted = fanOut("ImportBatch", batchIds, BatchReference.class);
+            List<String> failed = new ArrayList<>();
+            for (int i = 0; i < batchIds.size(); i++) {
+                BatchReference batch = submitted.get(i);
+                if (batch == null) {
+                    failed.add(batchIds.get(i));
+                } else if (batch.BatchStatusUrl != null && !batch.BatchStatusUrl.isEmpty()) {
+                    // a rejected job never completes, so it doesn't hold a slot
+                    state.InFlightBatchIds.add(batch.BatchId.toString());
+                }
+            }
+
+            // the submission is idempotent, so the batches keep their place and go out again with the next event
+            if (!failed.isEmpty()) {
+                state.ReadyBatchIds.addAll(0, failed);
+                return;
+            }
+        }
+    }
+
+    // fans the calls out in groups of at most AGGREGATOR_MAX_FAN_OUT and fans the results back in
+    private <V> List<V> fanOut(String name, List<?> inputs, Class<V> returnType) {
+        final int maxFanOut = Math.max(1, state.Settings.MaxFanOut);
+
+        List<V> results = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i += maxFanOut) {
+            results.addAll(runtime.callActivities(name, inputs.subList(i, Math.min(i + maxFanOut, inputs.size())),
+                    returnType));
+        }
+        return results;
+    }
+
+    // orchestrator code is replayed, so ids must be derived from replay-safe values only
+    private UUID newBatchId() {
+        String seed = runtime.instanceId() + "/" + runtime.now() + "/" + state.BatchSequence++;
+        return UUID.nameUUIDFromBytes(seed.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,29 @@
+package com.hephaestus;
+
+import java.util.List;
+
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Decides which pending files are sealed into $import batches. The aggregator keeps every file
+ * that isn't sealed in its staging batch and asks again whenever the pool changes, so a planner
+ * only has to be deterministic, it runs inside the orchestration.
+ */
+public interface BatchPlanner {
+    // returns the groups of pending files to seal into batches, files not returned stay pending.
+    // a group is only sealed once it holds fillTarget lines, unless flush is set
+    List<List<NdJsonReference>> plan(List<NdJsonReference> pending, long capacity, long fillTarget, boolean flush);
+
+    // the BATCH_PLANNER strategy, best-fit-decreasing unless set to greedy. BATCH_BY_RESOURCE_TYPE
+    // plans each resource type tier separately. Both come from AggregatorSettings, never read here
+    static BatchPlanner of(String name, boolean byResourceType) {
+        BatchPlanner planner = "greedy".equalsIgnoreCase(name)
+                ? new GreedyBatchPlanner()
+                : new BestFitDecreasingPlanner();
+
+        if (byResourceType) {
+            return new ResourceTypeGroupingPlanner(planner);
+        }
+        return planner;
+    }
+}
@@ -0,0 +1,130 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.azure.core.util.FluxUtil;
+import com.azure.storage.blob.BlobAsyncClient;
+import com.azure.storage.blob.BlobContainerAsyncClient;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.azure.storage.blob.models.BlobStorageException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hephaestus.models.NdJsonReference;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/*
+ * Checks the blobs of a batch before it is sent to $import, so a missing or broken file doesn't
+ * cost a job slot for hours only to fail. Every file's properties are read in parallel, at most
+ * PREFLIGHT_CONCURRENCY at a time: the blob must exist, be non-empty and have a content type
+ * $import can read. With PREFLIGHT_SAMPLE_FIRST_LINE the first record is also fetched and has to
+ * be a JSON object with a resourceType.
+ */
+public final class BatchPreflight {
+    // enough for the first record of any sane file, a longer line isn't judged
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private BatchPreflight() {
+    }
+
+    // why each failing file failed, in the order of the files, empty when they all passed
+    public static Mono<Map<NdJsonReference, String>> validate(List<NdJsonReference> files) {
+        BlobContainerAsyncClient containerClient = AzureClients.getBlobContainerAsyncClient();
+        final int concurrency = Math.max(1, Helper.getIntSetting("PREFLIGHT_CONCURRENCY", 16));
+        final boolean sampleFirstLine = Helper.getBooleanSetting("PREFLIGHT_SAMPLE_FIRST_LINE", false);
+        final Set<String> contentTypes = allowedContentTypes();
+
+        return Flux.fromIterable(files)
+                .flatMapSequential(file -> validate(containerClient.getBlobAsyncClient(file.filename), contentTypes,
+                        sampleFirstLine)
+                        .map(reason -> Map.entry(file, reason)), concurrency)
+                .<Map<NdJsonReference, String>>collect(LinkedHashMap::new,
+                        (problems, problem) -> problems.put(problem.getKey(), problem.getValue()));
+    }
+
+    // the reason the blob can't be imported, empty when it can
+    private static Mono<String> validate(BlobAsyncClient blobClient, Set<String> contentTypes,
+            boolean sampleFirstLine) {
+        return blobClient.getProperties()
+                .flatMap(properties -> {
+                    String reason = checkProperties(properties.getBlobSize(), properties.getContentType(),
+                            contentTypes);
+                    if (reason != null) {
+                        return Mono.just(reason);
+                    }
+                    return sampleFirstLine ? sampleFirstLine(blobClient, properties) : Mono.<String>empty();
+                })
+                .onErrorResume(e -> e instanceof BlobStorageException blobError && blobError.getStatusCode() == 404,
+                        e -> Mono.just("blob not found"));
+    }
+
+    private static Mono<String> sampleFirstLine(BlobAsyncClient blobClient, BlobProperties properties) {
+        final long count = Math.min(SAMPLE_SIZE, properties.getBlobSize());
+        return blobClient.downloadStreamWithResponse(new BlobRange(0, count), null,
+                new BlobRequestConditions().setIfMatch(properties.getETag()), false)
+                .flatMap(response -> FluxUtil.collectBytesInByteBufferStream(response.getValue()))
+                .flatMap(head -> Mono.justOrEmpty(checkFirstLine(head, count == properties.getBlobSize())));
+    }
+
+    static String checkProperties(long size, String contentType, Set<String> contentTypes) {
+        if (size == 0) {
+            return "blob is empty";
+        }
+        // blobs uploaded without a content type are fine, the server goes by the declared format
+        if (contentType != null && !contentType.isBlank()
+                && !contentTypes.contains(contentType.split(";")[0].trim().toLowerCase())) {
+            return "unsupported content type " + contentType;
+        }
+        return null;
+    }
+
+    // head is the start of the blob, or all of it when complete is set
+    static String checkFirstLine(byte[] head, boolean complete) {
+        int start = startsWithBom(head) ? 3 : 0;
+        int end = start;
+        while (end < head.length && head[end] != '\n') {
+            end++;
+        }
+        if (end == head.length && !complete) {
+            return null;
+        }
+
+        String line = new String(head, start, end - start, StandardCharsets.UTF_8).trim();
+        try {
+            JsonNode record = mapper.readTree(line);
+            if (record == null || !record.isObject()) {
+                return "first line is not a JSON object";
+            }
+            if (!record.path("resourceType").isTextual()) {
+                return "first line has no resourceType";
+            }
+            return null;
+        } catch (IOException e) {
+            return "first line is not valid JSON";
+        }
+    }
+
+    private static boolean startsWithBom(byte[] head) {
+        return head.length >= 3 && head[0] == (byte) 0xEF && head[1] == (byte) 0xBB && head[2] == (byte) 0xBF;
+    }
+
+    private static Set<String> allowedContentTypes() {
+        String setting = Helper.getSetting("PREFLIGHT_CONTENT_TYPES");
+        if (setting == null || setting.isBlank()) {
+            setting = "application/fhir+ndjson,application/x-ndjson,application/ndjson,application/json,"
+                    + "application/octet-stream,text/plain";
+        }
+        return Arrays.stream(setting.split(",")).map(type -> type.trim().toLowerCase()).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,53 @@
+package com.hephaestus;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Packs the pending pool largest file first, each file going into the open batch it fills most
+ * tightly. Small files left over by one batch top up another, so sealed batches come much closer
+ * to MAX_BATCH_SIZE than when files are batched in arrival order.
+ */
+public class BestFitDecreasingPlanner implements BatchPlanner {
+    @Override
+    public List<List<NdJsonReference>> plan(List<NdJsonReference> pending, long capacity, long fillTarget,
+            boolean flush) {
+        // stable sort, ties keep arrival order so replays pack the same way
+        List<NdJsonReference> sorted = new ArrayList<>(pending);
+        sorted.sort(Comparator.comparingLong((NdJsonReference file) -> file.lineCount).reversed());
+
+        List<List<NdJsonReference>> bins = new ArrayList<>();
+        List<Long> binSizes = new ArrayList<>();
+
+        for (NdJsonReference file : sorted) {
+            int best = -1;
+            long bestRemaining = Long.MAX_VALUE;
+            for (int i = 0; i < bins.size(); i++) {
+                long remaining = capacity - binSizes.get(i) - file.lineCount;
+                if (remaining >= 0 && remaining < bestRemaining) {
+                    best = i;
+                    bestRemaining = remaining;
+                }
+            }
+
+            if (best < 0) {
+                bins.add(new ArrayList<>());
+                binSizes.add(0L);
+                best = bins.size() - 1;
+            }
+            bins.get(best).add(file);
+            binSizes.set(best, binSizes.get(best) + file.lineCount);
+        }
+
+        List<List<NdJsonReference>> sealed = new ArrayList<>();
+        for (int i = 0; i < bins.size(); i++) {
+            if (flush || binSizes.get(i) >= fillTarget) {
+                sealed.add(bins.get(i));
+            }
+        }
+        return sealed;
+    }
+}
@@ -0,0 +1,96 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.zip.GZIPInputStream;
+
+import com.azure.storage.blob.BlobContainerClient;
+
+import com.hephaestus.models.BatchReference;
+import com.hephaestus.models.NdJsonReference;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.durabletask.azurefunctions.DurableActivityTrigger;
+
+/*
+ * This class contains activities that rewrite NDJSON blobs in the FHIR_STORAGE_CONTAINER
+ * so they better fit the $import performance guidance.
+ */
+public class BlobFunction {
+    // gzipped NDJSON is inflated through a buffer of this size, whatever the size of the file
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    // merges every file of the given compaction batch into one file and returns its reference
+    @FunctionName("CompactFiles")
+    public NdJsonReference compactFiles(
+            @DurableActivityTrigger(name = "CompactFiles") final BatchReference compactionBatch,
+            final ExecutionContext context) throws IOException {
+        var logger = context.getLogger();
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName());
+                var traced = PipelineTracing.joinTrace("CompactFiles", compactionBatch.Files)) {
+            return NdJsonCompactor.compact(compactionBatch.Files, Helper.getIntSetting("COMPACTION_PARALLELISM", 8),
+                    logger);
+        }
+    }
+
+    /*
+     * Streams an oversized or gzipped file into chunks of at most SPLIT_CHUNK_LINES lines and returns
+     * their references. A .gz file is decompressed on the fly, so its records are counted and its
+     * chunks uploaded in the same pass, and only the uncompressed chunks are batched.
+     */
+    @FunctionName("SplitNdJson")
+    public NdJsonReference[] splitNdJson(
+            @DurableActivityTrigger(name = "SplitNdJson") final NdJsonReference file,
+            final ExecutionContext context) throws IOException {
+        var logger = context.getLogger();
+        BlobContainerClient containerClient = AzureClients.getBlobContainerClient();
+
+        final int linesPerChunk = Helper.getIntSetting("SPLIT_CHUNK_LINES",
+                Helper.getIntSetting("MAX_BATCH_SIZE", 100_000_000));
+        final int blockSize = Helper.getIntSetting("SPLIT_BLOCK_SIZE_MB", 8) * 1024 * 1024;
+
+        List<NdJsonReference> chunks;
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName());
+                var traced = PipelineTracing.joinTrace("SplitNdJson", file.traceparent);
+                NdJsonChunkWriter writer = new NdJsonChunkWriter(containerClient, blockSize,
+                Helper.getIntSetting("SPLIT_PARALLELISM", 4));
+                InputStream input = openNdJson(file.filename,
+                        containerClient.getBlobClient(file.filename).openInputStream())) {
+            chunks = writer.write(input, chunkBaseName(file.filename), linesPerChunk);
+        }
+
+        // only the final chunk closes the request
+        if (!chunks.isEmpty()) {
+            chunks.get(chunks.size() - 1).isLastFileInRequest = file.isLastFileInRequest;
+        }
+        for (NdJsonReference chunk : chunks) {
+            chunk.receivedAt = file.receivedAt;
+            chunk.traceparent = file.traceparent;
+        }
+
+        logger.log(Level.INFO, "Split {0} into {1} chunks of at most {2} lines.",
+                new Object[] { file.filename, chunks.size(), linesPerChunk });
+
+        return chunks.toArray(new NdJsonReference[0]);
+    }
+
+    // the NDJSON content of the blob, inflated on the fly when the file is gzipped
+    static InputStream openNdJson(String filename, InputStream blob) throws IOException {
+        return filename.endsWith(".gz") ? new GZIPInputStream(blob, GZIP_BUFFER_SIZE) : blob;
+    }
+
+    /*
+     * Chunk names are derived from the source, so a retried activity overwrites its own chunks. A
+     * gzipped source keeps its .gz, so x.ndjson.gz and x.ndjson never split into the same chunks.
+     */
+    static String chunkBaseName(String filename) {
+        boolean gzipped = filename.endsWith(".gz");
+        String baseName = gzipped ? filename.substring(0, filename.length() - ".gz".length()) : filename;
+        if (baseName.endsWith(".ndjson")) {
+            baseName = baseName.substring(0, baseName.length() - ".ndjson".length());
+        }
+        return gzipped ? baseName + ".gz" : baseName;
+    }
+}
@@ -1,33 +1,206 @@
 package com.hephaestus;
 
+import com.azure.storage.blob.BlobClient;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
-import com.hephaestus.models.BatchReference;
+import com.hephaestus.models.AggregatorEvent;
+import com.hephaestus.models.AggregatorSettings;
+import com.hephaestus.models.AggregatorState;
 import com.hephaestus.models.NdJsonReference;
+import com.hephaestus.models.NdJsonScanResult;
 import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.QueueTrigger;
 import com.microsoft.durabletask.DurableTaskClient;
+import com.microsoft.durabletask.NewOrchestrationInstanceOptions;
+import com.microsoft.durabletask.OrchestrationMetadata;
+import com.microsoft.durabletask.OrchestrationRuntimeStatus;
+import com.microsoft.durabletask.RetryPolicy;
+import com.microsoft.durabletask.Task;
+import com.microsoft.durabletask.TaskCanceledException;
+import com.microsoft.durabletask.TaskFailedException;
+import com.microsoft.durabletask.TaskOptions;
 import com.microsoft.durabletask.TaskOrchestrationContext;
+import com.microsoft.durabletask.azurefunctions.DurableActivityTrigger;
 import com.microsoft.durabletask.azurefunctions.DurableClientContext;
 import com.microsoft.durabletask.azurefunctions.DurableClientInput;
 import com.microsoft.durabletask.azurefunctions.DurableOrchestrationTrigger;
 
+import io.opentelemetry.api.trace.SpanKind;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.ArrayList;
 
 public class DurableFunction {
+    public static final String AGGREGATOR_NAME = "BatchAggregator";
+    // there is only ever one aggregator, so it has a well known instance id
+    public static final String AGGREGATOR_INSTANCE_ID = "batch-aggregator";
+    public static final String AGGREGATOR_EVENT = "AggregatorEvent";
+    public static final String SPLITTER_NAME = "SplitFile";
+    public static final String QUEUE_NAME = "fhir-hose";
+
+    private static final TaskOptions ACTIVITY_OPTIONS = new TaskOptions(new RetryPolicy(3, Duration.ofSeconds(5)));
+    // a retried submission could start a second job for a batch whose first one was accepted
+    private static final Set<String> UNRETRIED_ACTIVITIES = Set.of("ImportBatch");
+    // a split in one of these is on its way or done, any other one is started again
+    private static final Set<OrchestrationRuntimeStatus> SPLIT_STARTED_STATUSES = EnumSet.of(
+            OrchestrationRuntimeStatus.RUNNING,
+            OrchestrationRuntimeStatus.PENDING,
+            OrchestrationRuntimeStatus.SUSPENDED,
+            OrchestrationRuntimeStatus.CONTINUED_AS_NEW,
+            OrchestrationRuntimeStatus.COMPLETED);
+
     @FunctionName("QueueProcessor")
     public void runQueueProcessor(
-            @QueueTrigger(name = "QueueProcessor", queueName = "fhir-hose", connection = "FHIR_STORAGE_CONN_STR") String message,
+            @QueueTrigger(name = "QueueProcessor", queueName = QUEUE_NAME, connection = "FHIR_STORAGE_CONN_STR") String message,
             @DurableClientInput(name = "durableContext") DurableClientContext durableContext,
             final ExecutionContext context) {
 
+        PipelineMetrics.queueMessage();
         final Logger logger = context.getLogger();
         logger.info(message);
 
+        NdJsonReference ndJsonReference = readMessage(message, logger);
+
+        // the file's trace starts here, unless the producer started it already
+        try (var activity = PipelineMetrics.enterActivity("QueueProcessor");
+                PipelineTracing.Traced traced = PipelineTracing.startTrace("QueueProcessor", SpanKind.CONSUMER,
+                        ndJsonReference.traceparent)) {
+            traced.setAttribute("hephaestus.file", ndJsonReference.filename);
+            ndJsonReference.traceparent = traced.traceparent();
+
+            // the queue delivers at least once and producers resend extracts, import each content once
+            String indexKey = null;
+            if (Helper.getBooleanSetting("IDEMPOTENCY_INDEX", true)) {
+                indexKey = AzureClients.withCallerContext(IdempotencyIndex.keyOf(ndJsonReference.filename)).block();
+                IdempotencyIndex.Claim claim = indexKey == null ? IdempotencyIndex.Claim.CLAIMED
+                        : AzureClients.withCallerContext(IdempotencyIndex.claim(indexKey, ndJsonReference.filename))
+                                .block();
+                if (claim == IdempotencyIndex.Claim.DUPLICATE) {
+                    traced.setAttribute("hephaestus.duplicate", "true");
+                    logger.log(Level.WARNING, "Skipping {0}, the same content was already registered.",
+                            ndJsonReference.filename);
+                    return;
+                }
+                if (claim == IdempotencyIndex.Claim.IN_PROGRESS) {
+                    traced.setAttribute("hephaestus.recheck", "true");
+                    recheckLater(message, ndJsonReference.filename, logger);
+                    return;
+                }
+            }
+
+            try {
+                processFile(ndJsonReference, durableContext.getClient(), traced, logger);
+            } catch (RuntimeException e) {
+                if (indexKey != null) {
+                    AzureClients.withCallerContext(IdempotencyIndex.release(indexKey)).block();
+                }
+                throw e;
+            }
+
+            if (indexKey != null) {
+                try {
+                    AzureClients.withCallerContext(IdempotencyIndex.complete(indexKey)).block();
+                } catch (RuntimeException e) {
+                    // the file is on its way, a redelivery finds the claim and waits for it to expire
+                    logger.log(Level.WARNING, "Could not mark {0} as registered: {1}",
+                            new Object[] { ndJsonReference.filename, e.getMessage() });
+                }
+            }
+        }
+    }
+
+    /*
+     * Sends the message again, to be delivered once the invocation holding the claim had time to
+     * finish. Failing the message instead would count towards its dequeue limit and poison a file
+     * that is only waiting for another copy of itself.
+     */
+    private static void recheckLater(String message, String filename, Logger logger) {
+        final int recheckSeconds = Helper.getIntSetting("IDEMPOTENCY_RECHECK_SECONDS", 60);
+        AzureClients.withCallerContext(AzureClients.getQueueAsyncClient()
+                .sendMessageWithResponse(message, Duration.ofSeconds(recheckSeconds), null)).block();
+        logger.log(Level.INFO, "{0} is being processed by another invocation, checking again in {1} seconds.",
+                new Object[] { filename, recheckSeconds });
+    }
+
+    // checks, splits or registers a file that isn't a duplicate
+    private static void processFile(NdJsonReference ndJsonReference, DurableTaskClient client,
+            PipelineTracing.Traced traced, Logger logger) {
+        // a compressed file can only be counted by inflating it, the split does both in one pass
+        if (ndJsonReference.filename.endsWith(".gz")) {
+            startSplit(client, ndJsonReference, logger);
+            return;
+        }
+
+        final int maxBatchSize = Helper.getIntSetting("MAX_BATCH_SIZE", 100_000_000);
+        final boolean splitLargeFiles = Helper.getBooleanSetting("SPLIT_LARGE_FILES", true);
+
+        // the split counts and sniffs every record as it goes, scanning first would stream the file twice
+        if (splitLargeFiles && ndJsonReference.lineCount > maxBatchSize) {
+            startSplit(client, ndJsonReference, logger);
+            return;
+        }
+
+        // don't trust the producer's line count, batch sizing depends on it
+        if (Helper.getBooleanSetting("SCAN_NDJSON_FILES", true)) {
+            try {
+                verifyFileReference(ndJsonReference, logger);
+            } catch (IOException e) {
+                traced.fail(e);
+                logger.severe("Failed to scan " + ndJsonReference.filename + ": " + e.getMessage());
+                throw new RuntimeException("Scan error: " + e.getMessage(), e);
+            }
+        }
+
+        final String maxBatchSizeStr = Helper.getSetting("MAX_BATCH_SIZE");
+
+        final int suggestedMinFileSize = Helper.getIntSetting("SUGGESTED_MIN_FILE_SIZE", 20_000);
+
+        // small files are compacted by the aggregator, only warn when that is switched off
+        if (ndJsonReference.lineCount < suggestedMinFileSize && !Helper.getBooleanSetting("COMPACT_SMALL_FILES", true)) {
+            logger.warning("For the file " +
+                    ndJsonReference.filename +
+                    " the line count of " +
+                    ndJsonReference.lineCount +
+                    " is less than " +
+                    suggestedMinFileSize +
+                    " is the suggested minimum file size for this process.");
+        }
+
+        // too large for any batch, split it into chunks that each fit and register those instead
+        if (ndJsonReference.lineCount > maxBatchSize) {
+            if (!splitLargeFiles) {
+                logger.severe("For the file " +
+                        ndJsonReference.filename +
+                        " the line count of " +
+                        ndJsonReference.lineCount +
+                        " is greater than " +
+                        maxBatchSizeStr +
+                        " is the maximum batch size for this process.");
+
+                return;
+            }
+
+            startSplit(client, ndJsonReference, logger);
+            return;
+        }
+
+        // hand the file to the singleton aggregator, it owns the staging batch
+        Helper.registerFile(client, ndJsonReference, logger);
+    }
+
+    // deserializes a queue message and stamps it with the time it was received
+    static NdJsonReference readMessage(String message, Logger logger) {
         NdJsonReference ndJsonReference = null;
 
         // serialize our file reference
@@ -47,80 +220,194 @@ public class DurableFunction {
             throw new RuntimeException("Deserialization error.");
         }
 
-        final String maxBatchSizeStr = System.getenv("MAX_BATCH_SIZE");
-        final String suggestedMinFileSizeStr = System.getenv("SUGGESTED_MIN_FILE_SIZE");
-
-        final int maxBatchSize = maxBatchSizeStr != null ? Integer.parseInt(maxBatchSizeStr) : 100_000_000;
-        final int suggestedMinFileSize = suggestedMinFileSizeStr != null ? Integer.parseInt(maxBatchSizeStr) : 20_000;
-
-        // for now, just warn us when a file is not matching recommendations but don't
-        // stop the process
-        if (ndJsonReference.lineCount < suggestedMinFileSize) {
-            logger.warning("For the file " +
-                    ndJsonReference.filename +
-                    " the line count of " +
-                    ndJsonReference.lineCount +
-                    "is less than " +
-                    suggestedMinFileSizeStr +
-                    " is the suggested minimum file size for this process.");
+        // queue to import latency is measured from here
+        if (ndJsonReference.receivedAt == 0) {
+            ndJsonReference.receivedAt = System.currentTimeMillis();
         }
 
-        // exit early with logging if the file is too large to be included in any batch
-        if (ndJsonReference.lineCount > maxBatchSize) {
-            logger.severe("For the file " +
-                    ndJsonReference.filename +
-                    " the line count of " +
-                    ndJsonReference.lineCount +
-                    "is greater than " +
-                    maxBatchSizeStr +
-                    " is the maximum batch size for this process.");
+        return ndJsonReference;
+    }
 
+    // one split per file, a redelivered message finds the split already running
+    private static void startSplit(DurableTaskClient client, NdJsonReference file, Logger logger) {
+        String instanceId = "split-" + UUID.nameUUIDFromBytes(file.filename.getBytes(StandardCharsets.UTF_8));
+
+        // a redelivered message finds its split, any failure to schedule one reaches the caller and retries the message
+        OrchestrationMetadata existing = client.getInstanceMetadata(instanceId, false);
+        if (existing != null && existing.isInstanceFound()
+                && SPLIT_STARTED_STATUSES.contains(existing.getRuntimeStatus())) {
+            logger.log(Level.INFO, "Split of {0} already started as {1}, it is {2}.",
+                    new Object[] { file.filename, instanceId, existing.getRuntimeStatus() });
             return;
         }
 
-        // so we should kick off an orchestration process...
-        DurableTaskClient client = durableContext.getClient();
+        client.scheduleNewOrchestrationInstance(SPLITTER_NAME,
+                new NewOrchestrationInstanceOptions().setInstanceId(instanceId).setInput(file));
+        logger.log(Level.INFO, "Started split of {0} with {1} lines as {2}.",
+                new Object[] { file.filename, file.lineCount, instanceId });
+    }
 
-        String instanceId = client.scheduleNewOrchestrationInstance("Orchestration", ndJsonReference);
+    /*
+     * Splits a file with more than MAX_BATCH_SIZE lines, or decompresses a gzipped one, into chunks of
+     * at most SPLIT_CHUNK_LINES lines and hands every chunk to the aggregator as if it had arrived on
+     * the queue.
+     */
+    @FunctionName(SPLITTER_NAME)
+    public void splitFile(
+            @DurableOrchestrationTrigger(name = SPLITTER_NAME) TaskOrchestrationContext ctx) {
+        NdJsonReference file = ctx.getInput(NdJsonReference.class);
 
-        // log the instance id
-        logger.info("Initiated orchestration with instance ID: ." + instanceId);
+        NdJsonReference[] chunks = ctx.callActivity("SplitNdJson", file, ACTIVITY_OPTIONS, NdJsonReference[].class)
+                .await();
+        ctx.callActivity("RegisterFiles", chunks, ACTIVITY_OPTIONS).await();
     }
 
-    // how do I do async/await??
-    // what is the cool way to do null coalescing in java?
-    @FunctionName("Orchestration")
-    public void batchOrchestrator(
-            @DurableOrchestrationTrigger(name = "Orchestration") TaskOrchestrationContext ctx) {
+    @FunctionName("RegisterFiles")
+    public void registerFiles(
+            @DurableActivityTrigger(name = "RegisterFiles") final NdJsonReference[] files,
+            @DurableClientInput(name = "durableContext") DurableClientContext durableContext,
+            final ExecutionContext context) {
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+            DurableTaskClient client = durableContext.getClient();
+            for (NdJsonReference file : files) {
+                Helper.registerFile(client, file, context.getLogger());
+            }
+        }
+    }
 
-        NdJsonReference latestFile = ctx.getInput(NdJsonReference.class);
+    // the aggregator's settings for the generation that is starting
+    @FunctionName("LoadAggregatorSettings")
+    public AggregatorSettings loadAggregatorSettings(
+            @DurableActivityTrigger(name = "LoadAggregatorSettings") final String input,
+            final ExecutionContext context) {
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+            return BatchAggregator.readSettings();
+        }
+    }
+
+    // streams the blob to count its records and sample their resource types, then corrects the reference
+    private static void verifyFileReference(NdJsonReference ndJsonReference, Logger logger) throws IOException {
+        BlobClient blobClient = AzureClients.getBlobContainerClient().getBlobClient(ndJsonReference.filename);
+        NdJsonScanResult scanResult = NdJsonScanner.scan(blobClient,
+                Helper.getIntSetting("SCAN_PARALLELISM", 4),
+                Helper.getIntSetting("SCAN_RANGE_SIZE_MB", 16) * 1024L * 1024L);
+
+        logger.log(Level.INFO, "Scanned {0}: {1} records in {2} bytes, resource types {3}", new Object[] {
+                scanResult.filename, scanResult.lineCount, scanResult.byteCount, scanResult.resourceTypeCounts });
+
+        if (ndJsonReference.lineCount != scanResult.lineCount) {
+            if (ndJsonReference.lineCount > 0) {
+                logger.warning("For the file " + ndJsonReference.filename + " the message says "
+                        + ndJsonReference.lineCount + " lines but the blob has " + scanResult.lineCount
+                        + ". Using the scanned count.");
+            }
+            ndJsonReference.lineCount = Math.toIntExact(scanResult.lineCount);
+        }
+
+        // only a file holding a single resource type gets a type
+        if (ndJsonReference.resourceType == null && scanResult.resourceTypeCounts.size() == 1) {
+            ndJsonReference.resourceType = scanResult.resourceTypeCounts.keySet().iterator().next();
+        }
+    }
+
+    /*
+     * Long running singleton that owns the staging batch. Files arrive as external events and are
+     * handed to a BatchAggregator whose state is carried across continueAsNew, so concurrent queue
+     * messages no longer race on the table and the history stays bounded.
+     */
+    @FunctionName(AGGREGATOR_NAME)
+    public void batchAggregator(
+            @DurableOrchestrationTrigger(name = AGGREGATOR_NAME) TaskOrchestrationContext ctx) {
 
-        BatchReference currentBatch = ctx.callActivity("LoadBatchReference", "discardme", BatchReference.class).await();
+        BatchAggregator aggregator = new BatchAggregator(ctx.getInput(AggregatorState.class), runtimeOf(ctx));
 
-        final String maxBatchSizeStr = System.getenv("MAX_BATCH_SIZE");
+        final int checkpointInterval = aggregator.getSettings().CheckpointInterval;
+        final int eventsPerGeneration = aggregator.getSettings().EventsPerGeneration;
 
-        final int maxBatchSize = maxBatchSizeStr != null ? Integer.parseInt(maxBatchSizeStr) : 100_000_000;
+        for (int processed = 0; processed < eventsPerGeneration; processed++) {
+            AggregatorEvent event;
 
-        // if we can't fit the file in the batch we will kick off the current batch
-        if (currentBatch.TotalResourceCount + latestFile.lineCount > maxBatchSize) {
-            ctx.callActivity("ImportBatch", currentBatch).await();
+            Duration timeout = aggregator.nextTimeout();
+            if (timeout == null) {
+                event = ctx.waitForExternalEvent(AGGREGATOR_EVENT, AggregatorEvent.class).await();
+            } else {
+                try {
+                    event = ctx.waitForExternalEvent(AGGREGATOR_EVENT, timeout, AggregatorEvent.class).await();
+                } catch (TaskCanceledException e) {
+                    event = null;
+                }
+            }
 
-            // and start a new batch
-            currentBatch = new BatchReference();
-            currentBatch.BatchId = UUID.randomUUID();
-            currentBatch.BatchStatus = "staging";
-            currentBatch.Files = new ArrayList<NdJsonReference>();
+            // an activity that is out of retries must not fail the singleton, keep what it has and go on
+            try {
+                if (event == null) {
+                    aggregator.onIdle();
+                } else if (event.CompletedBatchId != null) {
+                    aggregator.onImportCompleted(event.CompletedBatchId);
+                } else {
+                    aggregator.onFile(event.File);
+                    if (aggregator.uncheckpointedChanges() >= checkpointInterval) {
+                        aggregator.checkpoint();
+                    }
+                }
+            } catch (TaskFailedException e) {
+                tryCheckpoint(aggregator);
+            }
         }
 
-        // add the file to the batch
-        currentBatch.Files.add(latestFile);
-        currentBatch.TotalResourceCount += latestFile.lineCount;
+        tryCheckpoint(aggregator);
 
-        ctx.callActivity("SaveBatchReference", currentBatch).await();
+        // unprocessed events are carried over to the next generation
+        ctx.continueAsNew(aggregator.getState());
+    }
 
-        // last file we will receive then kick off the batch regardless of size
-        if (latestFile.isLastFileInRequest) {
-            ctx.callActivity("ImportBatch", currentBatch).await();
+    private static void tryCheckpoint(BatchAggregator aggregator) {
+        try {
+            aggregator.checkpoint();
+        } catch (TaskFailedException e) {
+            // the changes stay counted as uncheckpointed in the carried state, the next checkpoint writes them
         }
     }
+
+    private static TaskOptions optionsOf(String activityName) {
+        return UNRETRIED_ACTIVITIES.contains(activityName) ? null : ACTIVITY_OPTIONS;
+    }
+
+    // activities go through the orchestration so they are replayed instead of run again
+    private static BatchAggregator.Runtime runtimeOf(TaskOrchestrationContext ctx) {
+        return new BatchAggregator.Runtime() {
+            @Override
+            public <V> V callActivity(String name, Object input, Class<V> returnType) {
+                return ctx.callActivity(name, input, optionsOf(name), returnType).await();
+            }
+
+            @Override
+            public <V> List<V> callActivities(String name, List<?> inputs, Class<V> returnType) {
+                List<Task<V>> tasks = new ArrayList<>();
+                for (Object input : inputs) {
+                    tasks.add(ctx.callActivity(name, input, optionsOf(name), returnType));
+                }
+                // awaited one by one, so a failed call doesn't lose the results of the others
+                List<V> results = new ArrayList<>();
+                for (Task<V> task : tasks) {
+                    try {
+                        results.add(task.await());
+                    } catch (TaskFailedException e) {
+                        results.add(null);
+                    }
+                }
+                return results;
+            }
+
+            @Override
+            public Instant now() {
+                return ctx.getCurrentInstant();
+            }
+
+            @Override
+            public String instanceId() {
+                return ctx.getInstanceId();
+            }
+        };
+    }
 }
@@ -0,0 +1,159 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.hephaestus.models.BatchErrors;
+import com.hephaestus.models.ErrorLogReference;
+import com.hephaestus.models.ErrorSummary;
+import com.hephaestus.models.NdJsonReference;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.durabletask.RetryPolicy;
+import com.microsoft.durabletask.TaskOptions;
+import com.microsoft.durabletask.TaskOrchestrationContext;
+import com.microsoft.durabletask.azurefunctions.DurableActivityTrigger;
+import com.microsoft.durabletask.azurefunctions.DurableOrchestrationTrigger;
+
+/*
+ * This class contains the functions that follow up on the error logs of a completed $import job.
+ * Every batch with errors gets an ErrorSummary on its rows, and records that failed in a partially
+ * failed batch are copied into retry files and registered again, at most MAX_IMPORT_RETRIES times.
+ */
+public class ErrorFunction {
+    public static final String ERRORS_NAME = "ProcessBatchErrors";
+
+    // keeps a summary well below the 64KiB limit of a table property
+    private static final int MAX_SAMPLE_LENGTH = 1024;
+
+    private static final TaskOptions ACTIVITY_OPTIONS = new TaskOptions(new RetryPolicy(3, Duration.ofSeconds(5)));
+
+    @FunctionName(ERRORS_NAME)
+    public void processBatchErrors(
+            @DurableOrchestrationTrigger(name = ERRORS_NAME) TaskOrchestrationContext ctx) {
+        BatchErrors errors = ctx.getInput(BatchErrors.class);
+
+        ctx.callActivity("SummarizeBatchErrors", errors, ACTIVITY_OPTIONS).await();
+
+        // a batch that failed outright has a problem that retrying record by record won't fix
+        if ("partialfailure".equals(errors.BatchStatus)) {
+            NdJsonReference[] retryFiles = ctx.callActivity("BuildRetryFiles", errors, ACTIVITY_OPTIONS,
+                    NdJsonReference[].class).await();
+            if (retryFiles.length > 0) {
+                ctx.callActivity("RegisterFiles", retryFiles, ACTIVITY_OPTIONS).await();
+            }
+        }
+    }
+
+    // writes one retry file per source file that still has retries left, none unless RETRY_FAILED_RESOURCES
+    @FunctionName("BuildRetryFiles")
+    public NdJsonReference[] buildRetryFiles(
+            @DurableActivityTrigger(name = "BuildRetryFiles") final BatchErrors errors,
+            final ExecutionContext context) throws IOException {
+        // read here rather than in the orchestrator, which is replayed
+        if (!Helper.getBooleanSetting("RETRY_FAILED_RESOURCES", true)) {
+            return new NdJsonReference[0];
+        }
+        var logger = context.getLogger();
+        final int maxRetries = Helper.getIntSetting("MAX_IMPORT_RETRIES", 2);
+
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName());
+                var traced = PipelineTracing.joinTrace("BuildRetryFiles", errors.Traceparent)) {
+            // a file can have an error log per resource type
+            Map<String, List<String>> errorUrlsByFile = new LinkedHashMap<>();
+            for (ErrorLogReference errorLog : errors.ErrorLogs) {
+                errorUrlsByFile.computeIfAbsent(errorLog.Filename, filename -> new ArrayList<>()).add(errorLog.ErrorUrl);
+            }
+
+            List<NdJsonReference> retryFiles = new ArrayList<>();
+            for (Map.Entry<String, List<String>> file : errorUrlsByFile.entrySet()) {
+                NdJsonReference source = Helper.loadFileReference(errors.BatchId, file.getKey());
+                if (source == null) {
+                    logger.log(Level.WARNING, "File {0} is not part of batch {1}, its failures are not retried.",
+                            new Object[] { file.getKey(), errors.BatchId });
+                    continue;
+                }
+                if (source.retryAttempt >= maxRetries) {
+                    logger.log(Level.SEVERE, "Records of {0} failed after {1} retries, giving up on them.",
+                            new Object[] { source.filename, source.retryAttempt });
+                    continue;
+                }
+
+                NdJsonReference retryFile = RetryFileBuilder.build(source, file.getValue(), logger);
+                if (retryFile != null && retryFile.lineCount > 0) {
+                    retryFiles.add(retryFile);
+                }
+            }
+
+            // the retries of a batch are a request of their own, the last one sends them on their way
+            if (!retryFiles.isEmpty()) {
+                retryFiles.get(retryFiles.size() - 1).isLastFileInRequest = true;
+            }
+
+            return retryFiles.toArray(new NdJsonReference[0]);
+        }
+    }
+
+    /*
+     * Streams every error log of the batch once and stores a histogram of issue codes and resource
+     * types, with a few sample lines, as ErrorSummary on the batch header and on each file row.
+     */
+    @FunctionName("SummarizeBatchErrors")
+    public void summarizeBatchErrors(
+            @DurableActivityTrigger(name = "SummarizeBatchErrors") final BatchErrors errors,
+            final ExecutionContext context) throws IOException {
+        var logger = context.getLogger();
+        final int maxSamples = Helper.getIntSetting("ERROR_SUMMARY_SAMPLES", 5);
+
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName());
+                var traced = PipelineTracing.joinTrace("SummarizeBatchErrors", errors.Traceparent)) {
+            ErrorSummary batchSummary = new ErrorSummary();
+            Map<String, ErrorSummary> fileSummaries = new LinkedHashMap<>();
+            // resource type of each file as registered, read at most once per file
+            Map<String, String> fileResourceTypes = new HashMap<>();
+
+            for (ErrorLogReference errorLog : errors.ErrorLogs) {
+                ErrorSummary fileSummary = fileSummaries.computeIfAbsent(errorLog.Filename, filename -> new ErrorSummary());
+                // the server only names the type for some error logs, the file row knows it for single type files
+                String resourceType = errorLog.ResourceType != null ? errorLog.ResourceType
+                        : fileResourceTypes.computeIfAbsent(errorLog.Filename,
+                                filename -> registeredResourceType(errors.BatchId, filename));
+
+                try (InputStream input = Helper.openBlobUrl(errorLog.ErrorUrl)) {
+                    ErrorLogReader.read(input, entry -> {
+                        addError(batchSummary, entry, resourceType, maxSamples);
+                        addError(fileSummary, entry, resourceType, maxSamples);
+                    });
+                }
+            }
+
+            Helper.saveErrorSummaries(errors.BatchId, batchSummary, fileSummaries);
+
+            logger.log(Level.INFO, "Batch {0} has {1} errors, issue codes {2}, resource types {3}.", new Object[] {
+                    errors.BatchId, batchSummary.ErrorCount, batchSummary.IssueCodes, batchSummary.ResourceTypes });
+        }
+    }
+
+    private static String registeredResourceType(String batchId, String filename) {
+        NdJsonReference file = Helper.loadFileReference(batchId, filename);
+        return file != null && file.resourceType != null ? file.resourceType : "unknown";
+    }
+
+    private static void addError(ErrorSummary summary, ErrorLogReader.Entry entry, String resourceType,
+            int maxSamples) {
+        summary.ErrorCount++;
+        summary.IssueCodes.merge(entry.code != null ? entry.code : "unknown", 1L, Long::sum);
+        summary.ResourceTypes.merge(resourceType, 1L, Long::sum);
+        if (summary.Samples.size() < maxSamples) {
+            summary.Samples.add(entry.raw.length() > MAX_SAMPLE_LENGTH ? entry.raw.substring(0, MAX_SAMPLE_LENGTH)
+                    : entry.raw);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.hephaestus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/*
+ * Streams an $import error log, one OperationOutcome per line, and hands out the first issue of
+ * each. The FHIR service reports where the failed resource was as text, e.g. "Failed to process
+ * resource at line: 12 with stream start offset: 0", which is picked out of details.text or
+ * diagnostics when present.
+ */
+public final class ErrorLogReader {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final Pattern LINE = Pattern.compile("line:\\s*(\\d+)");
+    private static final Pattern OFFSET = Pattern.compile("offset:\\s*(\\d+)");
+
+    // depth of the issue objects in {"resourceType":"OperationOutcome","issue":[{...}]}
+    private static final int ISSUE_DEPTH = 3;
+
+    private ErrorLogReader() {
+    }
+
+    public static class Entry {
+        public String severity;
+        public String code;
+        public String text;
+        public String diagnostics;
+        // line of the failed resource counted from the first line starting at offset, -1 if not reported
+        public long line = -1;
+        public long offset;
+        public String raw;
+    }
+
+    // returns the number of entries read
+    public static long read(InputStream input, Consumer<Entry> consumer) throws IOException {
+        long entries = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isBlank()) {
+                continue;
+            }
+            consumer.accept(parse(line));
+            entries++;
+        }
+        return entries;
+    }
+
+    public static Entry parse(String line) {
+        Entry entry = new Entry();
+        entry.raw = line;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(line)) {
+            int depth = 0;
+            int issues = 0;
+            String field = null;
+            JsonToken token;
+            while ((token = parser.nextToken()) != null) {
+                switch (token) {
+                    case START_OBJECT, START_ARRAY -> {
+                        depth++;
+                        if (depth == ISSUE_DEPTH && token == JsonToken.START_OBJECT) {
+                            issues++;
+                        }
+                    }
+                    case END_OBJECT, END_ARRAY -> depth--;
+                    case FIELD_NAME -> field = parser.currentName();
+                    case VALUE_STRING -> {
+                        // only the first issue is kept
+                        if (issues == 1 && depth == ISSUE_DEPTH) {
+                            switch (field) {
+                                case "severity" -> entry.severity = parser.getText();
+                                case "code" -> entry.code = parser.getText();
+                                case "diagnostics" -> entry.diagnostics = parser.getText();
+                                default -> {
+                                }
+                            }
+                        } else if (issues == 1 && depth == ISSUE_DEPTH + 1 && "text".equals(field)) {
+                            entry.text = parser.getText();
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // not an OperationOutcome, the raw line is all there is
+        }
+
+        locate(entry, entry.text);
+        if (entry.line < 0) {
+            locate(entry, entry.diagnostics);
+        }
+        return entry;
+    }
+
+    private static void locate(Entry entry, String message) {
+        if (message == null) {
+            return;
+        }
+        Matcher line = LINE.matcher(message);
+        if (line.find()) {
+            entry.line = Long.parseLong(line.group(1));
+            Matcher offset = OFFSET.matcher(message);
+            entry.offset = offset.find() ? Long.parseLong(offset.group(1)) : 0;
+        }
+    }
+}
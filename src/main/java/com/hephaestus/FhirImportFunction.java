@@ -1,20 +1,19 @@
 package com.hephaestus;
 
 import java.net.URL;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import com.azure.core.credential.AccessToken;
-import com.azure.core.credential.TokenCredential;
-import com.azure.core.credential.TokenRequestContext;
-import com.azure.identity.DefaultAzureCredentialBuilder;
-import com.azure.storage.blob.BlobServiceClient;
-import com.azure.storage.blob.BlobServiceClientBuilder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.hephaestus.models.BatchReference;
 import com.hephaestus.models.FhirImportRequest;
@@ -23,17 +22,187 @@ import com.microsoft.azure.functions.ExecutionContext;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.durabletask.azurefunctions.DurableActivityTrigger;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.context.Context;
+import reactor.core.publisher.Mono;
+
 public class FhirImportFunction {
+    /*
+     * Loads the batch and submits it if it is still ready, so a repeated call returns the outcome of
+     * the first one instead of starting a second job. Returns the batch as submitted or stored, a
+     * BatchStatusUrl is only set if its job was accepted and hasn't completed.
+     */
     @FunctionName("ImportBatch")
-    public void importBatch(@DurableActivityTrigger(name = "ImportBatch") final BatchReference batchReference,
+    public BatchReference importBatch(@DurableActivityTrigger(name = "ImportBatch") final String batchId,
             final ExecutionContext context) {
 
-        batchReference.BatchStatus = "initiated";
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+            var logger = context.getLogger();
+            BatchReference batchReference = AzureClients.withCallerContext(
+                    Helper.loadBatchReferenceById(batchId, logger)).block();
+            if (batchReference == null) {
+                // nothing to import, and nothing to hold a slot for
+                batchReference = new BatchReference();
+                batchReference.BatchId = UUID.fromString(batchId);
+                batchReference.Files = new ArrayList<>();
+                batchReference.BatchStatusUrl = "";
+                return batchReference;
+            }
+
+            if (!"ready".equals(batchReference.BatchStatus)) {
+                logger.log(Level.INFO, "Batch {0} is already {1}, not submitting it again.",
+                        new Object[] { batchId, batchReference.BatchStatus });
+                if (!"initiated".equals(batchReference.BatchStatus) || batchReference.BatchStatusUrl == null) {
+                    batchReference.BatchStatusUrl = "";
+                }
+                return batchReference;
+            }
+
+            try (var traced = PipelineTracing.joinTrace("ImportBatch", batchReference.Files)) {
+                traced.setAttribute("hephaestus.batch", String.valueOf(batchReference.BatchId));
+                // status checks and the job's span hang off this one
+                if (traced.traceparent() != null) {
+                    batchReference.Traceparent = traced.traceparent();
+                }
+                // the Java worker needs the result when the activity returns, so block on it once here
+                return AzureClients.withCallerContext(quarantineInvalidFiles(batchReference, logger)
+                        .flatMap(batch -> "quarantined".equals(batch.BatchStatus) ? Mono.just(batch)
+                                : submitBatch(batch, logger)))
+                        .block();
+            }
+        }
+    }
+
+    /*
+     * Moves files whose blobs fail pre-flight validation into a quarantined batch of their own, so
+     * the rest of the batch can still be submitted. A batch with nothing left is quarantined as is.
+     */
+    private Mono<BatchReference> quarantineInvalidFiles(BatchReference batchReference, Logger logger) {
+        if (!Helper.getBooleanSetting("PREFLIGHT_VALIDATION", true)) {
+            return Mono.just(batchReference);
+        }
+
+        return BatchPreflight.validate(batchReference.Files).flatMap(problems -> {
+            if (problems.isEmpty()) {
+                return Mono.just(batchReference);
+            }
+
+            for (Map.Entry<NdJsonReference, String> problem : problems.entrySet()) {
+                problem.getKey().quarantineReason = problem.getValue();
+                PipelineMetrics.fileQuarantined(problem.getValue());
+                logger.log(Level.WARNING, "Quarantining {0} of batch {1}: {2}.", new Object[] {
+                        problem.getKey().filename, batchReference.BatchId, problem.getValue() });
+            }
+
+            if (problems.size() == batchReference.Files.size()) {
+                batchReference.BatchStatus = "quarantined";
+                return Helper.saveBatchReference(batchReference, logger);
+            }
+
+            // the same batch always quarantines into the same id, so a retried activity overwrites it
+            BatchReference quarantine = new BatchReference();
+            quarantine.BatchId = UUID.nameUUIDFromBytes(
+                    ("quarantine/" + batchReference.BatchId).getBytes(StandardCharsets.UTF_8));
+            quarantine.BatchStatus = "quarantined";
+            quarantine.BatchStatusUrl = "";
+            quarantine.Traceparent = batchReference.Traceparent;
+            quarantine.Files = new ArrayList<>(problems.keySet());
+
+            List<NdJsonReference> files = new ArrayList<>(batchReference.Files);
+            files.removeAll(problems.keySet());
+            for (NdJsonReference file : quarantine.Files) {
+                quarantine.TotalResourceCount += file.lineCount;
+            }
+            batchReference.Files = files;
+            batchReference.TotalResourceCount -= quarantine.TotalResourceCount;
+            batchReference.FillRatio = (double) batchReference.TotalResourceCount
+                    / Helper.getIntSetting("MAX_BATCH_SIZE", 100_000_000);
+
+            // the files leave the batch's rows when its $import outcome is saved
+            return Helper.saveBatchReference(quarantine, logger).thenReturn(batchReference);
+        });
+    }
+
+    /*
+     * Sends the batch to $import without holding a thread while the token, the FHIR service or the
+     * table respond, then saves the outcome. Only a job the server accepted is saved as initiated,
+     * so no batch is left initiated without a job to poll, and only a 403 or another 4xx refusal is
+     * final. A 429, a 5xx or an error before any response leaves the batch ready and fails the
+     * activity, so the aggregator submits it again. The returned batch only has a BatchStatusUrl if
+     * its job was accepted and saved as such.
+     */
+    private Mono<BatchReference> submitBatch(BatchReference batchReference, Logger logger) {
+        final long now = System.currentTimeMillis();
+
+        // the $import call completes on another thread, so its span's parent is taken now
+        final Context parent = Context.current();
+
+        logger.log(Level.INFO, "Importing batch {0} to FHIR server, {1} resources in {2} files, fill ratio {3}.",
+                new Object[] { batchReference.BatchId, batchReference.TotalResourceCount,
+                        batchReference.Files.size(), String.format("%.3f", batchReference.FillRatio) });
 
-        var logger = context.getLogger();
-        Helper.saveBatchReference(batchReference, logger);
-        logger.log(Level.INFO, "Importing batch {0} to FHIR server.", batchReference.BatchId);
+        // Send FHIR $import request
+        return Mono.fromFuture(FhirTokenProvider::getFhirTokenAsync)
+                .flatMap(authToken -> sendImportRequest(batchReference, authToken, parent))
+                .flatMap(response -> {
+                    logger.log(Level.INFO, "FHIR $import response code: {0}", response.statusCode());
+
+                    // a 403 or any other refusal comes without a Content-Location
+                    String statusLocation = response.headers().firstValue("Content-Location").orElse("");
+                    if (response.statusCode() == 202 && !statusLocation.isEmpty()) {
+                        // a submit that failed transiently is retried, only the accepted one counts
+                        recordAccepted(batchReference, now);
+                        batchReference.BatchStatus = "initiated";
+                        batchReference.BatchStatusUrl = statusLocation;
+                        return Mono.just(batchReference);
+                    }
+
+                    // too many jobs running or the service struggling, the batch stays ready for the next try
+                    if (isTransient(response.statusCode())) {
+                        return Mono.error(new IllegalStateException("FHIR $import request for batch "
+                                + batchReference.BatchId + " was refused with status code " + response.statusCode()));
+                    }
+
+                    logger.log(Level.SEVERE, "FHIR $import request for batch {0} failed with status code {1}",
+                            new Object[] { batchReference.BatchId, response.statusCode() });
+                    batchReference.BatchStatus = response.statusCode() == 403 ? "fullyFailed" : "submitFailed";
+                    batchReference.BatchStatusUrl = "";
+                    return Mono.just(batchReference);
+                })
+                .doOnError(e -> logger.log(Level.WARNING, "Batch {0} stays ready, its $import request failed: {1}",
+                        new Object[] { batchReference.BatchId, e.getMessage() }))
+                // Save FHIR $import outcome to table
+                .flatMap(submitted -> Helper.saveBatchReference(submitted, logger)
+                        .onErrorResume(e -> {
+                            // a job nobody knows about can't be polled, so it doesn't get a slot either
+                            logger.log(Level.SEVERE, "Could not save the $import outcome of batch {0}: {1}",
+                                    new Object[] { batchReference.BatchId, e.getMessage() });
+                            batchReference.BatchStatusUrl = "";
+                            return Mono.just(batchReference);
+                        }));
+    }
+
+    // refusals worth trying again, the FHIR service answers 429 while too many jobs are running
+    static boolean isTransient(int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    private static void recordAccepted(BatchReference batchReference, long submittedAt) {
+        // ready batches are loaded from the table, so LastModified is when the batch was sealed
+        if ("ready".equals(batchReference.BatchStatus) && batchReference.LastModified > 0) {
+            PipelineMetrics.batchStatusLeft("ready", submittedAt - batchReference.LastModified);
+        }
+        for (NdJsonReference file : batchReference.Files) {
+            if (file.receivedAt > 0) {
+                PipelineMetrics.fileQueuedFor(submittedAt - file.receivedAt);
+            }
+        }
+        PipelineMetrics.batchFillRatio(batchReference.FillRatio);
+    }
 
+    private Mono<HttpResponse<String>> sendImportRequest(BatchReference batchReference, AccessToken authToken,
+            Context parent) {
         // Build FHIR $import request
         FhirImportRequest fhirImportRequest = new FhirImportRequest();
         fhirImportRequest.setResourceType("Parameters");
@@ -49,67 +218,58 @@ public class FhirImportFunction {
         // mode parameter
         FhirImportRequest.Parameter modeParam = new FhirImportRequest.Parameter();
         modeParam.setName("mode");
-        modeParam.setValueString(System.getenv("FHIR_IMPORT_MODE"));
+        modeParam.setValueString(Helper.getSetting("FHIR_IMPORT_MODE"));
         parameters.add(modeParam);
 
         // Get the blob container URL
-        BlobServiceClient blobServiceClient = new BlobServiceClientBuilder()
-                .connectionString(System.getenv("FHIR_STORAGE_CONN_STR")).buildClient();
-        String blobBaseUrl = blobServiceClient.getAccountUrl() + "/" + System.getenv("FHIR_STORAGE_CONTAINER");
+        String blobBaseUrl = AzureClients.getBlobContainerClient().getBlobContainerUrl();
 
-        for (NdJsonReference file : batchReference.Files) {
+        // reference targets first, the server works through the inputs in order
+        List<NdJsonReference> files = new ArrayList<>(batchReference.Files);
+        files.sort(Comparator.comparingInt(file -> ResourceTypeTiers.tierOf(file.resourceType)));
+
+        for (NdJsonReference file : files) {
             // input parameter
             FhirImportRequest.Parameter inputParam = new FhirImportRequest.Parameter();
             inputParam.setName("input");
+            List<FhirImportRequest.Parameter.Part> parts = new ArrayList<>();
+
+            // only files holding a single resource type can declare it
+            if (file.resourceType != null) {
+                FhirImportRequest.Parameter.Part typePart = new FhirImportRequest.Parameter.Part();
+                typePart.setName("type");
+                typePart.setValueString(file.resourceType);
+                parts.add(typePart);
+            }
+
             FhirImportRequest.Parameter.Part urlPart = new FhirImportRequest.Parameter.Part();
             urlPart.setName("url");
             urlPart.setValueUri(blobBaseUrl + "/" + file.filename);
-            inputParam.setPart(new FhirImportRequest.Parameter.Part[] { urlPart });
+            parts.add(urlPart);
+
+            inputParam.setPart(parts.toArray(new FhirImportRequest.Parameter.Part[0]));
             parameters.add(inputParam);
         }
 
         fhirImportRequest.setParameter(parameters.toArray(new FhirImportRequest.Parameter[0]));
         ObjectMapper mapper = new ObjectMapper();
 
-        // Send FHIR $import request
-        try {
-            String importRequestJson = mapper.writeValueAsString(fhirImportRequest);
-            URL url = new URL(System.getenv("FHIR_SERVER_URL") + "/$import");
-            HttpClient client = HttpClient.newHttpClient();
-            TokenCredential tokenCredential = new DefaultAzureCredentialBuilder().build();
-            TokenRequestContext tokenRequestContext = new TokenRequestContext();
-            tokenRequestContext.addScopes(System.getenv("FHIR_SERVER_URL") + "/.default");
-            AccessToken authToken = tokenCredential.getTokenSync(tokenRequestContext);
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(url.toURI())
-                    .header("Authorization", "Bearer " + authToken.getToken())
-                    .header("Content-Type", "application/fhir+json")
-                    .header("Prefer", "respond-async")
-                    .POST(HttpRequest.BodyPublishers.ofString(importRequestJson))
-                    .build();
-
-            HttpResponse<String> response = client.send(request, BodyHandlers.ofString());
-
-            logger.log(Level.INFO, "FHIR $import response code: {0}", response.statusCode());
-
-            // todo: check response status first - since a 403 means no content-location
-
-            if(response.statusCode() == 403) {
-                logger.log(Level.SEVERE, "FHIR $import request failed with status code {0}", response.statusCode());
-                batchReference.BatchStatus = "fullyFailed";
-                Helper.saveBatchReference(batchReference, logger);
-                return;
-            }
-
-            // header causing an exception not related to the real permission problem
-            // Grab the status location from the response header
-            String statusLocation = response.headers().firstValue("Content-Location").get();
-
-            // Save FHIR $import response to table
-            batchReference.BatchStatusUrl = statusLocation;
-            Helper.saveBatchReference(batchReference, logger);
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Error sending FHIR $import request: {0}", e.getMessage());
-        }
+        return Mono.fromCallable(() -> HttpRequest.newBuilder()
+                .uri(new URL(Helper.getSetting("FHIR_SERVER_URL") + "/$import").toURI())
+                .header("Authorization", "Bearer " + authToken.getToken())
+                .header("Content-Type", "application/fhir+json")
+                .header("Prefer", "respond-async")
+                .POST(HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(fhirImportRequest))))
+                .flatMap(request -> {
+                    Span http = PipelineTracing.startChildSpan("POST $import", SpanKind.CLIENT, parent);
+                    final long sent = System.nanoTime();
+                    return Mono.fromFuture(() -> AzureClients.sendFhirRequest(
+                            PipelineTracing.inject(request, http).build(), BodyHandlers.ofString()))
+                            .doOnNext(response -> {
+                                PipelineTracing.end(http, response.statusCode());
+                                PipelineMetrics.importSubmitted(response.statusCode(), System.nanoTime() - sent);
+                            })
+                            .doOnError(e -> PipelineTracing.end(http, e));
+                });
     }
 }
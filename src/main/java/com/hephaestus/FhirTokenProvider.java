@@ -0,0 +1,100 @@
+package com.hephaestus;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import com.azure.identity.DefaultAzureCredentialBuilder;
+
+/*
+ * Caches access tokens per scope for the lifetime of the worker process. A cached token is handed out
+ * until shortly before it expires; once it enters the refresh window a background refresh is started
+ * and callers keep getting the still valid token. Only one token request per scope is ever in flight,
+ * concurrent callers share it.
+ */
+public final class FhirTokenProvider {
+    // start refreshing this long before expiry
+    private static final Duration REFRESH_WINDOW = Duration.ofMinutes(5);
+    // never hand out a token this close to expiry, wait for the refresh instead
+    private static final Duration EXPIRY_MARGIN = Duration.ofSeconds(30);
+
+    private static final ConcurrentHashMap<String, AccessToken> tokens = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<AccessToken>> refreshes = new ConcurrentHashMap<>();
+
+    private FhirTokenProvider() {
+    }
+
+    private static final class CredentialHolder {
+        // building the credential probes the whole chain, so do it once
+        static final TokenCredential CREDENTIAL = new DefaultAzureCredentialBuilder().build();
+    }
+
+    // token for the FHIR_SERVER_URL audience
+    public static AccessToken getFhirToken() {
+        return getToken(Helper.getSetting("FHIR_SERVER_URL") + "/.default");
+    }
+
+    public static AccessToken getToken(String scope) {
+        try {
+            return getTokenAsync(scope).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    // token for the FHIR_SERVER_URL audience, without blocking the caller when it has to be fetched
+    public static CompletableFuture<AccessToken> getFhirTokenAsync() {
+        return getTokenAsync(Helper.getSetting("FHIR_SERVER_URL") + "/.default");
+    }
+
+    public static CompletableFuture<AccessToken> getTokenAsync(String scope) {
+        OffsetDateTime now = OffsetDateTime.now();
+        AccessToken cached = tokens.get(scope);
+
+        if (cached != null && now.isBefore(cached.getExpiresAt().minus(EXPIRY_MARGIN))) {
+            if (now.isAfter(cached.getExpiresAt().minus(REFRESH_WINDOW))) {
+                refresh(scope);
+            }
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        return refresh(scope);
+    }
+
+    // seeds the cache, e.g. with a dummy token for a local FHIR stand-in that doesn't check it
+    static void primeToken(String scope, AccessToken token) {
+        tokens.put(scope, token);
+    }
+
+    // starts a token request for the scope unless one is already running
+    private static CompletableFuture<AccessToken> refresh(String scope) {
+        CompletableFuture<AccessToken> created = new CompletableFuture<>();
+        CompletableFuture<AccessToken> running = refreshes.putIfAbsent(scope, created);
+        if (running != null) {
+            return running;
+        }
+
+        TokenRequestContext tokenRequestContext = new TokenRequestContext();
+        tokenRequestContext.addScopes(scope);
+
+        CredentialHolder.CREDENTIAL.getToken(tokenRequestContext).toFuture().whenComplete((token, error) -> {
+            if (token != null) {
+                tokens.put(scope, token);
+            }
+            refreshes.remove(scope, created);
+
+            if (error != null) {
+                created.completeExceptionally(error);
+            } else {
+                created.complete(token);
+            }
+        });
+
+        return created;
+    }
+}
@@ -0,0 +1,35 @@
+package com.hephaestus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * The original strategy, files are batched in arrival order and a batch is sealed as soon as the
+ * next file doesn't fit.
+ */
+public class GreedyBatchPlanner implements BatchPlanner {
+    @Override
+    public List<List<NdJsonReference>> plan(List<NdJsonReference> pending, long capacity, long fillTarget,
+            boolean flush) {
+        List<List<NdJsonReference>> sealed = new ArrayList<>();
+        List<NdJsonReference> current = new ArrayList<>();
+        long currentSize = 0;
+
+        for (NdJsonReference file : pending) {
+            if (!current.isEmpty() && currentSize + file.lineCount > capacity) {
+                sealed.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(file);
+            currentSize += file.lineCount;
+        }
+
+        if (!current.isEmpty() && (flush || currentSize >= fillTarget)) {
+            sealed.add(current);
+        }
+        return sealed;
+    }
+}
@@ -1,102 +1,517 @@
 package com.hephaestus;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import com.azure.data.tables.TableClient;
-import com.azure.data.tables.TableServiceClient;
-import com.azure.data.tables.TableServiceClientBuilder;
+import com.azure.core.http.HttpHeaderName;
+import com.azure.data.tables.TableAsyncClient;
+import com.azure.data.tables.models.ListEntitiesOptions;
 import com.azure.data.tables.models.TableEntity;
+import com.azure.data.tables.models.TableEntityUpdateMode;
+import com.azure.data.tables.models.TableServiceException;
+import com.azure.data.tables.models.TableTransactionAction;
+import com.azure.data.tables.models.TableTransactionActionType;
+import com.azure.storage.blob.BlobUrlParts;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hephaestus.models.AggregatorEvent;
 import com.hephaestus.models.BatchReference;
+import com.hephaestus.models.ErrorSummary;
 import com.hephaestus.models.NdJsonReference;
+import com.microsoft.durabletask.DurableTaskClient;
+import com.microsoft.durabletask.NewOrchestrationInstanceOptions;
+import com.microsoft.durabletask.OrchestrationMetadata;
+import com.microsoft.durabletask.OrchestrationRuntimeStatus;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 /*
  * Java Azure Functions don't seem to allow for initiating an activity function 
  * from within another activity function. So we've extracted logic for reuse here
  */
 public class Helper {
-    public static BatchReference loadBatchReference(Logger logger) {
-        TableServiceClient serviceClient = new TableServiceClientBuilder()
-                .connectionString(System.getenv("FHIR_STORAGE_CONN_STR"))
-                .buildClient();
-        TableClient tableClient = serviceClient.getTableClient(System.getenv("FHIR_STORAGE_TABLE"));
-
-        logger.info("Loading staging batch reference from table storage.");
-
-        // fetch only the rows whose partition key is "batch" as the batch reference
-        // check for status staging
-        // there should only ever be one batch reference in staging status
-        BatchReference currentBatch = tableClient
-                .listEntities()
-                .stream()
-                .filter(entity -> entity.getPartitionKey().equals("batch")
-                        && entity.getProperty("BatchStatus").equals("staging"))
-                .map(entity -> {
-                    BatchReference batchReference = new BatchReference();
-                    batchReference.BatchId = UUID.fromString(entity.getRowKey());
-                    batchReference.TotalResourceCount = Integer
-                            .parseInt(entity.getProperty("TotalResourceCount").toString());
-                    batchReference.BatchStatus = entity.getProperty("BatchStatus").toString();
-                    batchReference.BatchStatusUrl = entity.getProperty("BatchStatusUrl").toString();
-                    return batchReference;
-                })
-                .findFirst()
-                .orElse(null);
-
-        // for initial run
-        if (currentBatch == null) {
-            logger.info("No staging batch reference found in table storage. Creating new batch reference.");
-            currentBatch = new BatchReference();
-            currentBatch.BatchId = UUID.randomUUID();
-            currentBatch.TotalResourceCount = 0;
-            currentBatch.BatchStatus = "staging";
-            currentBatch.BatchStatusUrl = "";
-            currentBatch.Files = List.of();
-            return currentBatch;
-        }
-
-        // fetch file references associated with the batch
-        final BatchReference finalCurrentBatch = currentBatch;
-        currentBatch.Files = tableClient
-                .listEntities()
-                .stream()
-                .filter(entity -> entity.getPartitionKey().equals(finalCurrentBatch.BatchId.toString()))
-                .map(entity -> {
-                    NdJsonReference ndJsonReference = new NdJsonReference();
-                    ndJsonReference.filename = entity.getRowKey();
-                    ndJsonReference.lineCount = Integer.parseInt(entity.getProperty("LineCount").toString());
-                    return ndJsonReference;
-                })
-                .toList();
+    // batch header rows live in this partition, keyed by batch id
+    public static final String BATCH_PARTITION = "batch";
+    // one row per pointed status, keyed by status, holding the id of the single batch in that status
+    public static final String POINTER_PARTITION = "pointer";
+    // statuses that only ever have one batch at a time, and so get a pointer row
+    private static final Set<String> POINTER_STATUSES = Set.of("staging", "compacting");
+    private static final Set<OrchestrationRuntimeStatus> ACTIVE_STATUSES = EnumSet.of(
+            OrchestrationRuntimeStatus.RUNNING,
+            OrchestrationRuntimeStatus.PENDING,
+            OrchestrationRuntimeStatus.CONTINUED_AS_NEW,
+            OrchestrationRuntimeStatus.SUSPENDED);
+    // pointer row claimed by whoever starts a stopped aggregator
+    private static final String AGGREGATOR_START_KEY = "aggregator-start";
+    // a start claim that didn't produce a running aggregator by then is taken over
+    private static final Duration AGGREGATOR_START_TIMEOUT = Duration.ofMinutes(2);
+    // how long a caller that lost the start claim waits for the winner's aggregator
+    private static final Duration AGGREGATOR_START_WAIT = Duration.ofSeconds(30);
+    // limit imposed by the table service on entity group transactions
+    public static final int MAX_TRANSACTION_SIZE = 100;
+
+    // reads an app setting, a system property of the same name wins so a local harness can override it
+    public static String getSetting(String name) {
+        final String value = System.getProperty(name);
+        return value != null ? value : System.getenv(name);
+    }
+
+    // reads an integer app setting, falling back to the default when it is not set
+    public static int getIntSetting(String name, int defaultValue) {
+        final String value = getSetting(name);
+        return value != null && !value.isBlank() ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    public static boolean getBooleanSetting(String name, boolean defaultValue) {
+        final String value = getSetting(name);
+        return value != null && !value.isBlank() ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    // block ids within one blob must all have the same length
+    public static String blockId(long index) {
+        return Base64.getEncoder().encodeToString(String.format("%016d", index).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // loads the single batch in the given pointed status, or a new empty one if there is none
+    public static Mono<BatchReference> loadBatchReference(String batchStatus, Logger logger) {
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+
+        logger.log(Level.INFO, "Loading {0} batch reference from table storage.", batchStatus);
+
+        // there should only ever be one batch reference in this status, the pointer row
+        // tells us which one it is so we can fetch it with point reads instead of a scan
+        Mono<Optional<TableEntity>> batchEntity = getEntityOrEmpty(tableClient, POINTER_PARTITION, batchStatus)
+                .flatMap(pointerEntity -> getEntityOrEmpty(tableClient, BATCH_PARTITION,
+                        pointerEntity.getProperty("BatchId").toString())
+                        // the pointer may still reference a batch that has since been submitted
+                        .filter(entity -> batchStatus.equals(entity.getProperty("BatchStatus")))
+                        .map(Optional::of)
+                        .defaultIfEmpty(Optional.empty()))
+                .switchIfEmpty(Mono.defer(() -> {
+                    // tables written before the pointer row existed, look it up once with a partition scoped filter
+                    ListEntitiesOptions options = new ListEntitiesOptions()
+                            .setFilter("PartitionKey eq '" + BATCH_PARTITION + "' and BatchStatus eq '" + batchStatus + "'")
+                            .setTop(1);
+                    return tableClient.listEntities(options).next()
+                            .flatMap(entity -> savePointer(tableClient, batchStatus, entity.getRowKey())
+                                    .thenReturn(Optional.of(entity)))
+                            .defaultIfEmpty(Optional.empty());
+                }));
+
+        return batchEntity.flatMap(entity -> {
+            // for initial run
+            if (entity.isEmpty()) {
+                logger.log(Level.INFO, "No {0} batch reference found in table storage. Creating new batch reference.",
+                        batchStatus);
+                BatchReference currentBatch = new BatchReference();
+                currentBatch.BatchId = UUID.randomUUID();
+                currentBatch.TotalResourceCount = 0;
+                currentBatch.BatchStatus = batchStatus;
+                currentBatch.BatchStatusUrl = "";
+                currentBatch.Files = List.of();
+                return Mono.just(currentBatch);
+            }
+
+            return readBatch(tableClient, entity.get()).doOnNext(currentBatch -> logger.log(Level.INFO,
+                    "Loaded {0} batch reference {1} from table storage.",
+                    new Object[] { batchStatus, currentBatch.BatchId }));
+        });
+    }
+
+    // loads the batch with the given id, empty if there is no such batch
+    public static Mono<BatchReference> loadBatchReferenceById(String batchId, Logger logger) {
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+        return getEntityOrEmpty(tableClient, BATCH_PARTITION, batchId)
+                .flatMap(batchEntity -> readBatch(tableClient, batchEntity))
+                .switchIfEmpty(Mono.fromRunnable(() -> logger.log(Level.WARNING,
+                        "Batch reference {0} not found in table storage.", batchId)));
+    }
+
+    // ids of every batch in the given status, header rows only
+    public static Mono<List<String>> listBatchIds(String batchStatus) {
+        ListEntitiesOptions options = new ListEntitiesOptions()
+                .setFilter("PartitionKey eq '" + BATCH_PARTITION + "' and BatchStatus eq '" + batchStatus + "'")
+                .setSelect(List.of("RowKey"));
+        return AzureClients.getTableAsyncClient().listEntities(options)
+                .map(TableEntity::getRowKey)
+                .collectList();
+    }
+
+    private static Mono<BatchReference> readBatch(TableAsyncClient tableClient, TableEntity batchEntity) {
+        BatchReference currentBatch = new BatchReference();
+        currentBatch.BatchId = UUID.fromString(batchEntity.getRowKey());
+        currentBatch.TotalResourceCount = Integer.parseInt(batchEntity.getProperty("TotalResourceCount").toString());
+        currentBatch.BatchStatus = batchEntity.getProperty("BatchStatus").toString();
+        currentBatch.BatchStatusUrl = Objects.toString(batchEntity.getProperty("BatchStatusUrl"), "");
+        currentBatch.FillRatio = Double.parseDouble(Objects.toString(batchEntity.getProperty("FillRatio"), "0"));
+        currentBatch.Traceparent = (String) batchEntity.getProperty("Traceparent");
+        if (batchEntity.getTimestamp() != null) {
+            currentBatch.LastModified = batchEntity.getTimestamp().toInstant().toEpochMilli();
+        }
+        currentBatch.ETag = batchEntity.getETag();
 
-        logger.log(Level.INFO, "Loaded staging batch reference {0} from table storage.", currentBatch.BatchId);
+        // fetch file references associated with the batch, they all live in the batch's own partition
+        return tableClient.listEntities(fileRowOptions(currentBatch.BatchId))
+                .map(Helper::fromFileEntity)
+                .collectList()
+                .map(files -> {
+                    currentBatch.Files = files;
+                    currentBatch.PersistedFiles = new HashMap<>();
+                    for (NdJsonReference file : files) {
+                        currentBatch.PersistedFiles.put(file.filename,
+                                new HashMap<>(toFileEntity(currentBatch.BatchId, file).getProperties()));
+                    }
+                    return currentBatch;
+                });
+    }
 
-        return currentBatch;
+    private static ListEntitiesOptions fileRowOptions(UUID batchId) {
+        return new ListEntitiesOptions()
+                .setFilter("PartitionKey eq '" + batchId + "'")
+                .setSelect(List.of("PartitionKey", "RowKey", "LineCount", "ResourceType", "RetryAttempt",
+                        "ReceivedAt", "Traceparent", "QuarantineReason"));
     }
 
-    public static void saveBatchReference(BatchReference batchReference, Logger logger) {
-        TableServiceClient serviceClient = new TableServiceClientBuilder()
-                .connectionString(System.getenv("FHIR_STORAGE_CONN_STR"))
-                .buildClient();
-        TableClient tableClient = serviceClient.getTableClient(System.getenv("FHIR_STORAGE_TABLE"));
+    /*
+     * Writes only what changed since the batch was loaded or last saved. File rows are compared
+     * against the rows in PersistedFiles and the new, changed and removed ones are sent as entity
+     * group transactions.
+     *
+     * A new batch has its file rows written before its header, so a reader never sees a header
+     * whose files are missing. An existing batch takes the concurrency check first: the header is
+     * read back and replaced conditionally on its ETag, and only then are its file rows touched.
+     * A header that moved on since our ETag is only accepted if it already holds what we are
+     * writing, which is a retried save whose first attempt got through. Its file rows are then
+     * compared against the stored ones instead of PersistedFiles.
+     * Emits the same reference with ETag and PersistedFiles brought up to date.
+     */
+    public static Mono<BatchReference> saveBatchReference(BatchReference batchReference, Logger logger) {
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
         logger.log(Level.INFO, "Saving batch reference {0} to table storage.", batchReference.BatchId);
 
-        // save batch reference
-        TableEntity batchEntity = new TableEntity("batch", batchReference.BatchId.toString());
-        batchEntity.addProperty("TotalResourceCount", batchReference.TotalResourceCount);
-        batchEntity.addProperty("BatchStatus", batchReference.BatchStatus);
-        batchEntity.addProperty("BatchStatusUrl", batchReference.BatchStatusUrl);
-        tableClient.upsertEntity(batchEntity);
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("TotalResourceCount", batchReference.TotalResourceCount);
+        header.put("BatchStatus", batchReference.BatchStatus);
+        header.put("BatchStatusUrl", batchReference.BatchStatusUrl);
+        header.put("FillRatio", batchReference.FillRatio);
+        if (batchReference.Traceparent != null) {
+            header.put("Traceparent", batchReference.Traceparent);
+        }
+
+        if (batchReference.ETag == null) {
+            // nobody else knows the id of a batch that was never saved, so there is nothing to check
+            TableEntity batchEntity = new TableEntity(BATCH_PARTITION, batchReference.BatchId.toString());
+            header.forEach(batchEntity::addProperty);
+
+            return saveFileRows(tableClient, batchReference, batchReference.PersistedFiles, logger)
+                    .then(tableClient.upsertEntityWithResponse(batchEntity, TableEntityUpdateMode.REPLACE))
+                    .flatMap(response -> {
+                        batchReference.ETag = response.getHeaders().getValue(HttpHeaderName.ETAG);
+
+                        // a pointed batch only needs the pointer set once, when its header is first written
+                        if (POINTER_STATUSES.contains(batchReference.BatchStatus)) {
+                            return savePointer(tableClient, batchReference.BatchStatus,
+                                    batchReference.BatchId.toString());
+                        }
+                        return Mono.<Void>empty();
+                    })
+                    .thenReturn(batchReference);
+        }
+
+        return tableClient.getEntity(BATCH_PARTITION, batchReference.BatchId.toString())
+                .flatMap(stored -> {
+                    boolean retried = !batchReference.ETag.equals(stored.getETag());
+                    if (retried && !header.entrySet().stream()
+                            .allMatch(property -> Objects.equals(stored.getProperty(property.getKey()),
+                                    property.getValue()))) {
+                        return Mono.error(concurrentUpdate(batchReference, logger, null));
+                    }
+
+                    // the entity as read carries its ETag, so the replace only applies if nobody wrote in between
+                    header.forEach(stored::addProperty);
+                    return tableClient.updateEntityWithResponse(stored, TableEntityUpdateMode.REPLACE, true)
+                            .onErrorMap(e -> statusCode(e) == 412, e -> concurrentUpdate(batchReference, logger, e))
+                            .flatMap(response -> {
+                                batchReference.ETag = response.getHeaders().getValue(HttpHeaderName.ETAG);
+                                return retried ? loadFileRows(tableClient, batchReference.BatchId)
+                                        : Mono.justOrEmpty(batchReference.PersistedFiles);
+                            })
+                            .defaultIfEmpty(Map.of())
+                            .flatMap(persistedFiles -> saveFileRows(tableClient, batchReference, persistedFiles,
+                                    logger));
+                })
+                .thenReturn(batchReference);
+    }
+
+    // writes the file rows that differ from the persisted ones and deletes those of removed files
+    private static Mono<Void> saveFileRows(TableAsyncClient tableClient, BatchReference batchReference,
+            Map<String, Map<String, Object>> persistedFiles, Logger logger) {
+        if (persistedFiles == null) {
+            persistedFiles = Map.of();
+        }
 
-        logger.log(Level.INFO, "Saving {0} file references for batch {1} to table storage.", new Object[]{batchReference.Files.size(), batchReference.BatchId});
-        // save file references
+        List<TableTransactionAction> actions = new ArrayList<>();
+        Map<String, Map<String, Object>> savedFiles = new HashMap<>();
         for (NdJsonReference file : batchReference.Files) {
-            TableEntity entity = new TableEntity(batchReference.BatchId.toString(), file.filename);
-            entity.addProperty("LineCount", file.lineCount);
-            tableClient.upsertEntity(entity);
+            TableEntity entity = toFileEntity(batchReference.BatchId, file);
+            savedFiles.put(file.filename, new HashMap<>(entity.getProperties()));
+
+            if (!entity.getProperties().equals(persistedFiles.get(file.filename))) {
+                actions.add(new TableTransactionAction(TableTransactionActionType.UPSERT_REPLACE, entity));
+            }
+        }
+        for (String filename : persistedFiles.keySet()) {
+            if (!savedFiles.containsKey(filename)) {
+                actions.add(new TableTransactionAction(TableTransactionActionType.DELETE,
+                        new TableEntity(batchReference.BatchId.toString(), filename)));
+            }
+        }
+
+        logger.log(Level.INFO, "Saving {0} of {1} file references for batch {2} to table storage.",
+                new Object[] { actions.size(), batchReference.Files.size(), batchReference.BatchId });
+
+        return submitTransactions(tableClient, actions)
+                .doOnSuccess(ignored -> batchReference.PersistedFiles = savedFiles);
+    }
+
+    // the batch's file rows as stored, in the form saveFileRows compares against
+    private static Mono<Map<String, Map<String, Object>>> loadFileRows(TableAsyncClient tableClient, UUID batchId) {
+        return tableClient.listEntities(fileRowOptions(batchId))
+                .map(Helper::fromFileEntity)
+                .collectMap(file -> file.filename,
+                        file -> (Map<String, Object>) new HashMap<>(toFileEntity(batchId, file).getProperties()));
+    }
+
+    private static IllegalStateException concurrentUpdate(BatchReference batchReference, Logger logger,
+            Throwable cause) {
+        logger.log(Level.SEVERE, "Batch reference {0} was modified by another writer.", batchReference.BatchId);
+        return new IllegalStateException("Concurrent update of batch " + batchReference.BatchId, cause);
+    }
+
+    /*
+     * Submits the actions as entity group transactions. A transaction can only span a single
+     * partition and at most 100 operations, so actions are grouped and chunked accordingly.
+     * The chunks are independent of each other and are sent concurrently.
+     */
+    public static Mono<Void> submitTransactions(TableAsyncClient tableClient, List<TableTransactionAction> actions) {
+        Map<String, List<TableTransactionAction>> byPartition = new LinkedHashMap<>();
+        for (TableTransactionAction action : actions) {
+            byPartition.computeIfAbsent(action.getEntity().getPartitionKey(), key -> new ArrayList<>()).add(action);
         }
-        // todo: return status? make a task and await it?
+
+        List<List<TableTransactionAction>> chunks = new ArrayList<>();
+        for (List<TableTransactionAction> partitionActions : byPartition.values()) {
+            for (int i = 0; i < partitionActions.size(); i += MAX_TRANSACTION_SIZE) {
+                chunks.add(partitionActions.subList(i, Math.min(i + MAX_TRANSACTION_SIZE, partitionActions.size())));
+            }
+        }
+
+        return Flux.fromIterable(chunks)
+                .flatMap(tableClient::submitTransaction, Helper.getIntSetting("STORAGE_MAX_CONNECTIONS", 64))
+                .then();
+    }
+
+    /*
+     * Merges the error summaries onto the batch header and the file rows, the rest of each row
+     * is left as it is.
+     */
+    public static void saveErrorSummaries(String batchId, ErrorSummary batchSummary,
+            Map<String, ErrorSummary> fileSummaries) throws JsonProcessingException {
+        ObjectMapper mapper = new ObjectMapper();
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+
+        List<TableTransactionAction> actions = new ArrayList<>();
+        for (Map.Entry<String, ErrorSummary> fileSummary : fileSummaries.entrySet()) {
+            TableEntity fileEntity = new TableEntity(batchId, fileSummary.getKey());
+            fileEntity.addProperty("ErrorSummary", mapper.writeValueAsString(fileSummary.getValue()));
+            actions.add(new TableTransactionAction(TableTransactionActionType.UPSERT_MERGE, fileEntity));
+        }
+
+        TableEntity batchEntity = new TableEntity(BATCH_PARTITION, batchId);
+        batchEntity.addProperty("ErrorSummary", mapper.writeValueAsString(batchSummary));
+
+        AzureClients.withCallerContext(submitTransactions(tableClient, actions)
+                .then(tableClient.updateEntity(batchEntity, TableEntityUpdateMode.MERGE))).block();
+    }
+
+    // opens a blob of the storage account by its url, e.g. an error log in the fhirlogs container
+    public static InputStream openBlobUrl(String blobUrl) {
+        BlobUrlParts parts = BlobUrlParts.parse(blobUrl);
+        return AzureClients.getBlobServiceClient()
+                .getBlobContainerClient(parts.getBlobContainerName())
+                .getBlobClient(parts.getBlobName())
+                .openInputStream();
+    }
+
+    // loads a single file row of a batch, or null if the batch has no such file
+    public static NdJsonReference loadFileReference(String batchId, String filename) {
+        return AzureClients.withCallerContext(getEntityOrEmpty(AzureClients.getTableAsyncClient(), batchId, filename)
+                .map(Helper::fromFileEntity)).block();
+    }
+
+    private static NdJsonReference fromFileEntity(TableEntity entity) {
+        NdJsonReference ndJsonReference = new NdJsonReference();
+        ndJsonReference.filename = entity.getRowKey();
+        ndJsonReference.lineCount = Integer.parseInt(entity.getProperty("LineCount").toString());
+        ndJsonReference.resourceType = (String) entity.getProperty("ResourceType");
+        ndJsonReference.retryAttempt = Integer.parseInt(Objects.toString(entity.getProperty("RetryAttempt"), "0"));
+        ndJsonReference.receivedAt = Long.parseLong(Objects.toString(entity.getProperty("ReceivedAt"), "0"));
+        ndJsonReference.traceparent = (String) entity.getProperty("Traceparent");
+        ndJsonReference.quarantineReason = (String) entity.getProperty("QuarantineReason");
+        return ndJsonReference;
+    }
+
+    private static TableEntity toFileEntity(UUID batchId, NdJsonReference file) {
+        TableEntity entity = new TableEntity(batchId.toString(), file.filename);
+        entity.addProperty("LineCount", file.lineCount);
+        if (file.resourceType != null) {
+            entity.addProperty("ResourceType", file.resourceType);
+        }
+        if (file.retryAttempt > 0) {
+            entity.addProperty("RetryAttempt", file.retryAttempt);
+        }
+        if (file.receivedAt > 0) {
+            entity.addProperty("ReceivedAt", file.receivedAt);
+        }
+        if (file.traceparent != null) {
+            entity.addProperty("Traceparent", file.traceparent);
+        }
+        if (file.quarantineReason != null) {
+            entity.addProperty("QuarantineReason", file.quarantineReason);
+        }
+        return entity;
+    }
+
+    private static Mono<Void> savePointer(TableAsyncClient tableClient, String batchStatus, String batchId) {
+        TableEntity pointerEntity = new TableEntity(POINTER_PARTITION, batchStatus);
+        pointerEntity.addProperty("BatchId", batchId);
+        return tableClient.upsertEntity(pointerEntity);
+    }
+
+    // point read that treats a missing row as empty instead of an error
+    private static Mono<TableEntity> getEntityOrEmpty(TableAsyncClient tableClient, String partitionKey, String rowKey) {
+        return tableClient.getEntity(partitionKey, rowKey).onErrorResume(e -> statusCode(e) == 404, e -> Mono.empty());
+    }
+
+    // status code of a failed table request, 0 for any other error
+    static int statusCode(Throwable e) {
+        return e instanceof TableServiceException tableError && tableError.getResponse() != null
+                ? tableError.getResponse().getStatusCode()
+                : 0;
+    }
+
+    /*
+     * Hands a file to the batch aggregator, starting the aggregator first if it isn't running.
+     * Events sent to an instance that is still starting are queued until it picks them up.
+     */
+    public static void registerFile(DurableTaskClient client, NdJsonReference file, Logger logger) {
+        OrchestrationMetadata metadata = client.getInstanceMetadata(DurableFunction.AGGREGATOR_INSTANCE_ID, false);
+        if (!isActive(metadata)) {
+            startAggregator(client, metadata, logger);
+        }
+
+        AggregatorEvent event = new AggregatorEvent();
+        event.File = file;
+        client.raiseEvent(DurableFunction.AGGREGATOR_INSTANCE_ID, DurableFunction.AGGREGATOR_EVENT, event);
+        logger.log(Level.INFO, "Registered file {0} with the batch aggregator.", file.filename);
+    }
+
+    private static boolean isActive(OrchestrationMetadata metadata) {
+        return metadata != null && metadata.isInstanceFound() && ACTIVE_STATUSES.contains(metadata.getRuntimeStatus());
+    }
+
+    /*
+     * Scheduling the aggregator's instance id while its last instance has stopped replaces that
+     * instance, so a second start would drop the events sent to the first. Only the caller that
+     * claims the start schedules it, the others wait until the new instance is up.
+     */
+    private static void startAggregator(DurableTaskClient client, OrchestrationMetadata stopped, Logger logger) {
+        String stoppedInstance = stopped == null || !stopped.isInstanceFound() ? "none"
+                : String.valueOf(stopped.getCreatedAt());
+
+        if (AzureClients.withCallerContext(claimAggregatorStart(stoppedInstance)).block()) {
+            try {
+                client.scheduleNewOrchestrationInstance(DurableFunction.AGGREGATOR_NAME,
+                        new NewOrchestrationInstanceOptions().setInstanceId(DurableFunction.AGGREGATOR_INSTANCE_ID));
+            } catch (RuntimeException e) {
+                // let the redelivered message try again right away instead of after the claim expires
+                AzureClients.withCallerContext(AzureClients.getTableAsyncClient()
+                        .deleteEntity(POINTER_PARTITION, AGGREGATOR_START_KEY)
+                        .onErrorResume(deleteError -> Mono.empty())).block();
+                throw e;
+            }
+            logger.info("Started batch aggregator orchestration.");
+            return;
+        }
+
+        final long deadline = System.nanoTime() + AGGREGATOR_START_WAIT.toNanos();
+        while (!isActive(client.getInstanceMetadata(DurableFunction.AGGREGATOR_INSTANCE_ID, false))) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("The batch aggregator is being started but isn't running yet.");
+            }
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the batch aggregator to start.", e);
+            }
+        }
+        logger.info("Batch aggregator was started by another invocation.");
+    }
+
+    /*
+     * Emits true when the caller won the start of the stopped instance, "none" when there was no
+     * instance at all. A claim for another stopped instance, or one older than
+     * AGGREGATOR_START_TIMEOUT whose winner never got the aggregator running, is taken over.
+     */
+    private static Mono<Boolean> claimAggregatorStart(String stoppedInstance) {
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+        TableEntity claim = new TableEntity(POINTER_PARTITION, AGGREGATOR_START_KEY)
+                .addProperty("StoppedInstance", stoppedInstance);
+
+        return tableClient.createEntity(claim).thenReturn(true)
+                .onErrorResume(e -> statusCode(e) == 409, e -> tableClient.getEntity(POINTER_PARTITION,
+                        AGGREGATOR_START_KEY)
+                        .flatMap(existing -> {
+                            if (stoppedInstance.equals(existing.getProperty("StoppedInstance"))
+                                    && existing.getTimestamp() != null && existing.getTimestamp()
+                                            .isAfter(OffsetDateTime.now().minus(AGGREGATOR_START_TIMEOUT))) {
+                                return Mono.just(false);
+                            }
+
+                            // only one of the callers replacing the old claim wins
+                            existing.addProperty("StoppedInstance", stoppedInstance);
+                            return tableClient.updateEntityWithResponse(existing, TableEntityUpdateMode.REPLACE, true)
+                                    .thenReturn(true)
+                                    .onErrorResume(updateError -> statusCode(updateError) == 412,
+                                            updateError -> Mono.just(false));
+                        }));
+    }
+
+    /*
+     * Frees the batch's import slot so the aggregator can release the next ready batch. Throws when
+     * the event can't be raised, the caller keeps the batch initiated and tells the aggregator again.
+     */
+    public static void notifyImportCompleted(DurableTaskClient client, String batchId, Logger logger) {
+        AggregatorEvent event = new AggregatorEvent();
+        event.CompletedBatchId = batchId;
+        client.raiseEvent(DurableFunction.AGGREGATOR_INSTANCE_ID, DurableFunction.AGGREGATOR_EVENT, event);
+        logger.log(Level.INFO, "Notified the batch aggregator that batch {0} completed.", batchId);
     }
 }
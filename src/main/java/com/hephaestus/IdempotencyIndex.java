@@ -0,0 +1,160 @@
+package com.hephaestus;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.azure.data.tables.TableAsyncClient;
+import com.azure.data.tables.models.ListEntitiesOptions;
+import com.azure.data.tables.models.TableEntity;
+import com.azure.data.tables.models.TableEntityUpdateMode;
+import com.azure.data.tables.models.TableTransactionAction;
+import com.azure.data.tables.models.TableTransactionActionType;
+import com.azure.data.tables.models.TableServiceException;
+import com.azure.storage.blob.models.BlobStorageException;
+
+import reactor.core.publisher.Mono;
+
+/*
+ * Remembers which file contents have already been registered, so a redelivered queue message or
+ * a resent extract isn't imported twice. A file is keyed by the SHA-256 of its name and content
+ * MD5, or its ETag when the blob has no MD5, and has a single row in the table holding only its
+ * name and whether it was registered yet. Recently registered keys are also kept in an LRU cache
+ * of IDEMPOTENCY_CACHE_SIZE entries, so hot duplicates don't cost a table read.
+ *
+ * A key is claimed before the file is processed and marked registered after. A claim that
+ * is neither registered nor released within IDEMPOTENCY_CLAIM_TIMEOUT_SECONDS belonged to an
+ * invocation that died, and is taken over. Rows are kept for IDEMPOTENCY_RETENTION_DAYS, a file
+ * sent again after that is imported again unless its key is still cached.
+ */
+public final class IdempotencyIndex {
+    // index rows live in this partition, keyed by content key
+    public static final String INDEX_PARTITION = "fileindex";
+
+    // what a claim found
+    public enum Claim {
+        // the caller owns the file and should process it
+        CLAIMED,
+        // the content was registered before
+        DUPLICATE,
+        // another invocation is processing the content right now
+        IN_PROGRESS
+    }
+
+    private static final Map<String, Boolean> registered = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > Helper.getIntSetting("IDEMPOTENCY_CACHE_SIZE", 10_000);
+                }
+            });
+
+    private IdempotencyIndex() {
+    }
+
+    // the key of the blob's current content, empty when there is no such blob
+    public static Mono<String> keyOf(String filename) {
+        return AzureClients.getBlobContainerAsyncClient().getBlobAsyncClient(filename).getProperties()
+                .map(properties -> key(filename, properties.getContentMd5(), properties.getETag()))
+                .onErrorResume(e -> e instanceof BlobStorageException blobError && blobError.getStatusCode() == 404,
+                        e -> Mono.empty());
+    }
+
+    static String key(String filename, byte[] contentMd5, String eTag) {
+        String content = contentMd5 != null ? Base64.getEncoder().encodeToString(contentMd5) : eTag;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((filename + "\n" + content).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // claims the key for the caller, unless it was registered or is claimed by a live invocation
+    public static Mono<Claim> claim(String key, String filename) {
+        if (registered.get(key) != null) {
+            PipelineMetrics.duplicateFile("memory");
+            return Mono.just(Claim.DUPLICATE);
+        }
+
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+        TableEntity claim = new TableEntity(INDEX_PARTITION, key)
+                .addProperty("Filename", filename)
+                .addProperty("Status", "claimed");
+
+        return tableClient.createEntity(claim).thenReturn(Claim.CLAIMED)
+                .onErrorResume(e -> statusCode(e) == 409, e -> tableClient.getEntity(INDEX_PARTITION, key)
+                        .flatMap(existing -> {
+                            if ("registered".equals(existing.getProperty("Status"))) {
+                                registered.put(key, true);
+                                PipelineMetrics.duplicateFile("table");
+                                return Mono.just(Claim.DUPLICATE);
+                            }
+
+                            final long claimTimeoutSeconds = Helper.getIntSetting("IDEMPOTENCY_CLAIM_TIMEOUT_SECONDS",
+                                    600);
+                            if (existing.getTimestamp() != null && existing.getTimestamp()
+                                    .isAfter(OffsetDateTime.now().minusSeconds(claimTimeoutSeconds))) {
+                                return Mono.just(Claim.IN_PROGRESS);
+                            }
+
+                            // only one of the invocations taking over an abandoned claim wins, the entity as
+                            // read carries its ETag
+                            existing.addProperty("Filename", filename).addProperty("Status", "claimed");
+                            return tableClient.updateEntityWithResponse(existing, TableEntityUpdateMode.REPLACE, true)
+                                    .thenReturn(Claim.CLAIMED)
+                                    .onErrorResume(lost -> statusCode(lost) == 412, lost -> Mono.just(Claim.IN_PROGRESS));
+                        }));
+    }
+
+    // the file was handed on, later copies of it are duplicates
+    public static Mono<Void> complete(String key) {
+        TableEntity entity = new TableEntity(INDEX_PARTITION, key).addProperty("Status", "registered");
+        return AzureClients.getTableAsyncClient().updateEntity(entity, TableEntityUpdateMode.MERGE)
+                .doOnSuccess(ignored -> registered.put(key, true));
+    }
+
+    /*
+     * Gives the claim up after processing failed, so the redelivered message processes the file
+     * again. Best effort, a claim that can't be deleted expires instead.
+     */
+    public static Mono<Void> release(String key) {
+        return AzureClients.getTableAsyncClient().deleteEntity(INDEX_PARTITION, key)
+                .onErrorResume(e -> Mono.empty());
+    }
+
+    /*
+     * Deletes the rows last written before the cutoff and emits how many there were. They are
+     * streamed and deleted a transaction at a time, a backlog of rows is never held in memory.
+     */
+    public static Mono<Long> expire(OffsetDateTime cutoff) {
+        TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+        ListEntitiesOptions options = new ListEntitiesOptions()
+                .setFilter("PartitionKey eq '" + INDEX_PARTITION + "' and Timestamp lt datetime'"
+                        + DateTimeFormatter.ISO_INSTANT.format(cutoff.truncatedTo(ChronoUnit.SECONDS)) + "'")
+                .setSelect(List.of("RowKey"));
+
+        return tableClient.listEntities(options)
+                .map(entity -> new TableTransactionAction(TableTransactionActionType.DELETE,
+                        new TableEntity(INDEX_PARTITION, entity.getRowKey())))
+                .buffer(Helper.MAX_TRANSACTION_SIZE)
+                .concatMap(actions -> Helper.submitTransactions(tableClient, actions).thenReturn((long) actions.size()))
+                .reduce(0L, Long::sum);
+    }
+
+    private static int statusCode(Throwable e) {
+        return e instanceof TableServiceException tableError && tableError.getResponse() != null
+                ? tableError.getResponse().getStatusCode()
+                : 0;
+    }
+}
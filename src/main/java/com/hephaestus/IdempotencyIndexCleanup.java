@@ -0,0 +1,34 @@
+package com.hephaestus;
+
+import java.time.OffsetDateTime;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.annotation.FunctionName;
+import com.microsoft.azure.functions.annotation.TimerTrigger;
+
+/*
+ * Runs every night and deletes the idempotency index rows of files last seen more than
+ * IDEMPOTENCY_RETENTION_DAYS ago, so the index doesn't grow with every file ever imported.
+ * 0 keeps them for good.
+ */
+public class IdempotencyIndexCleanup {
+    @FunctionName("IdempotencyIndexCleanup")
+    public void run(
+            @TimerTrigger(name = "timerInfo", schedule = "0 0 3 * * *") String timerInfo,
+            final ExecutionContext context) {
+        final int retentionDays = Helper.getIntSetting("IDEMPOTENCY_RETENTION_DAYS", 30);
+        if (retentionDays <= 0) {
+            return;
+        }
+
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+            Logger logger = context.getLogger();
+            long deleted = AzureClients.withCallerContext(
+                    IdempotencyIndex.expire(OffsetDateTime.now().minusDays(retentionDays))).block();
+            logger.log(Level.INFO, "Deleted {0} idempotency index rows older than {1} days.",
+                    new Object[] { deleted, retentionDays });
+        }
+    }
+}
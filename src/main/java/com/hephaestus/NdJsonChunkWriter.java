@@ -0,0 +1,215 @@
+package com.hephaestus;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import com.azure.storage.blob.BlobContainerClient;
+import com.hephaestus.models.NdJsonReference;
+
+import io.opentelemetry.context.Context;
+
+/*
+ * Streams NDJSON from any input into one or more blobs of at most linesPerChunk records each,
+ * cutting only at line boundaries. Content is staged as fixed size blocks that are uploaded in
+ * parallel, with at most parallelism blocks in flight, so memory stays bounded however large the
+ * input is. Records are counted and their resourceType sniffed in the same pass.
+ */
+public class NdJsonChunkWriter implements AutoCloseable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // where the blocks of each chunk are staged and committed, block blobs in a container outside of tests
+    interface BlockSink {
+        void stageBlock(String filename, String blockId, byte[] data, int length);
+
+        void commitBlockList(String filename, List<String> blockIds);
+    }
+
+    private final BlockSink sink;
+    private final int blockSize;
+    private final ExecutorService executor;
+    private final Semaphore blocksInFlight;
+
+    public NdJsonChunkWriter(BlobContainerClient containerClient, int blockSize, int parallelism) {
+        this(new BlockSink() {
+            @Override
+            public void stageBlock(String filename, String blockId, byte[] data, int length) {
+                containerClient.getBlobClient(filename).getBlockBlobClient()
+                        .stageBlock(blockId, new ByteArrayInputStream(data, 0, length), length);
+            }
+
+            @Override
+            public void commitBlockList(String filename, List<String> blockIds) {
+                containerClient.getBlobClient(filename).getBlockBlobClient().commitBlockList(blockIds, true);
+            }
+        }, blockSize, parallelism);
+    }
+
+    NdJsonChunkWriter(BlockSink sink, int blockSize, int parallelism) {
+        this.sink = sink;
+        this.blockSize = blockSize;
+        // uploads are traced as part of whatever span submitted them
+        this.executor = Context.taskWrapping(Executors.newFixedThreadPool(parallelism));
+        this.blocksInFlight = new Semaphore(parallelism);
+    }
+
+    // chunks are named <baseName>-part-00000.ndjson, <baseName>-part-00001.ndjson, ...
+    public List<NdJsonReference> write(InputStream input, String baseName, long linesPerChunk) throws IOException {
+        List<NdJsonReference> written = new ArrayList<>();
+        ResourceTypeSniffer sniffer = new ResourceTypeSniffer();
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        boolean lineHasContent = false;
+
+        Chunk chunk = new Chunk(baseName, 0);
+        int read;
+        while ((read = input.read(readBuffer)) > 0) {
+            int copyStart = 0;
+            int segmentStart = 0;
+
+            for (int i = 0; i < read; i++) {
+                byte b = readBuffer[i];
+                if (b == '\n') {
+                    sniffer.feed(readBuffer, segmentStart, i);
+                    String resourceType = sniffer.finishLine();
+                    if (lineHasContent) {
+                        chunk.addLine(resourceType);
+                    }
+                    lineHasContent = false;
+                    segmentStart = i + 1;
+
+                    if (chunk.lineCount >= linesPerChunk) {
+                        chunk.append(readBuffer, copyStart, i + 1);
+                        written.add(chunk.commit());
+                        chunk = new Chunk(baseName, chunk.index + 1);
+                        copyStart = i + 1;
+                    }
+                } else if (!lineHasContent && b != ' ' && b != '\t' && b != '\r') {
+                    lineHasContent = true;
+                }
+            }
+
+            sniffer.feed(readBuffer, segmentStart, read);
+            chunk.append(readBuffer, copyStart, read);
+        }
+
+        // last line without a trailing newline
+        String resourceType = sniffer.finishLine();
+        if (lineHasContent) {
+            chunk.addLine(resourceType);
+        }
+        if (chunk.lineCount > 0) {
+            written.add(chunk.commit());
+        }
+
+        return written;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private final class Chunk {
+        final int index;
+        final String filename;
+        final List<String> blockIds = new ArrayList<>();
+        final List<Future<?>> uploads = new ArrayList<>();
+        final Map<String, Long> resourceTypeCounts = new HashMap<>();
+        long lineCount;
+        long byteCount;
+        byte[] block;
+        int blockLength;
+
+        Chunk(String baseName, int index) {
+            this.index = index;
+            this.filename = String.format("%s-part-%05d.ndjson", baseName, index);
+        }
+
+        void addLine(String resourceType) {
+            lineCount++;
+            if (resourceType != null) {
+                resourceTypeCounts.merge(resourceType, 1L, Long::sum);
+            }
+        }
+
+        void append(byte[] buffer, int start, int end) throws IOException {
+            while (start < end) {
+                if (block == null) {
+                    block = new byte[blockSize];
+                    blockLength = 0;
+                }
+                int length = Math.min(end - start, blockSize - blockLength);
+                System.arraycopy(buffer, start, block, blockLength, length);
+                blockLength += length;
+                byteCount += length;
+                start += length;
+
+                if (blockLength == blockSize) {
+                    stageBlock();
+                }
+            }
+        }
+
+        // hands the current block to the upload pool, waiting while the pool is full
+        void stageBlock() throws IOException {
+            if (block == null || blockLength == 0) {
+                return;
+            }
+
+            try {
+                blocksInFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while staging " + filename, e);
+            }
+
+            final byte[] data = block;
+            final int length = blockLength;
+            final String blockId = Helper.blockId(blockIds.size());
+            blockIds.add(blockId);
+            uploads.add(executor.submit(() -> {
+                try {
+                    sink.stageBlock(filename, blockId, data, length);
+                } finally {
+                    blocksInFlight.release();
+                }
+            }));
+
+            block = null;
+            blockLength = 0;
+        }
+
+        NdJsonReference commit() throws IOException {
+            stageBlock();
+
+            try {
+                for (Future<?> upload : uploads) {
+                    upload.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while uploading " + filename, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Upload of " + filename + " failed: " + e.getCause().getMessage(), e.getCause());
+            }
+            sink.commitBlockList(filename, blockIds);
+
+            NdJsonReference reference = new NdJsonReference();
+            reference.filename = filename;
+            reference.lineCount = Math.toIntExact(lineCount);
+            if (resourceTypeCounts.size() == 1) {
+                reference.resourceType = resourceTypeCounts.keySet().iterator().next();
+            }
+            return reference;
+        }
+    }
+}
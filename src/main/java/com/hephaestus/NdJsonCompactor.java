@@ -0,0 +1,128 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.azure.core.util.BinaryData;
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.sas.BlobSasPermission;
+import com.azure.storage.blob.sas.BlobServiceSasSignatureValues;
+import com.azure.storage.blob.specialized.BlockBlobClient;
+import com.hephaestus.models.NdJsonReference;
+
+import io.opentelemetry.context.Context;
+
+/*
+ * Merges small NDJSON files into one larger file without moving the data through the function.
+ * Every source blob becomes a block of the target that the storage service copies from a short
+ * lived read SAS, and the block list is committed in source order.
+ */
+public final class NdJsonCompactor {
+    private static final BinaryData NEWLINE = BinaryData.fromBytes("\n".getBytes(StandardCharsets.UTF_8));
+
+    private NdJsonCompactor() {
+    }
+
+    public static NdJsonReference compact(List<NdJsonReference> files, int parallelism, Logger logger)
+            throws IOException {
+        BlobContainerClient containerClient = AzureClients.getBlobContainerClient();
+
+        // named after its sources so a retried activity overwrites the same target
+        StringBuilder seed = new StringBuilder();
+        files.forEach(file -> seed.append(file.filename).append('\n'));
+        String targetName = "compacted-" + UUID.nameUUIDFromBytes(seed.toString().getBytes(StandardCharsets.UTF_8))
+                + ".ndjson";
+        BlockBlobClient target = containerClient.getBlobClient(targetName).getBlockBlobClient();
+
+        // copy blocks server side, each source gets two block slots, the second for a missing final newline
+        List<List<String>> blockIdsPerFile = new ArrayList<>();
+        ExecutorService executor = Context.taskWrapping(
+                Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, files.size()))));
+        try {
+            List<Future<List<String>>> futures = new ArrayList<>();
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                futures.add(executor.submit(
+                        () -> stageFile(target, containerClient.getBlobClient(files.get(index).filename), index)));
+            }
+            for (Future<List<String>> future : futures) {
+                blockIdsPerFile.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compaction into " + targetName + " was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compaction into " + targetName + " failed: " + e.getCause().getMessage(),
+                    e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> blockIds = new ArrayList<>();
+        blockIdsPerFile.forEach(blockIds::addAll);
+        target.commitBlockList(blockIds, true);
+
+        NdJsonReference merged = new NdJsonReference();
+        merged.filename = targetName;
+        merged.resourceType = files.get(0).resourceType;
+        for (NdJsonReference file : files) {
+            merged.lineCount += file.lineCount;
+            merged.isLastFileInRequest |= file.isLastFileInRequest;
+            // the merged file is only retried as often as its most retried source
+            merged.retryAttempt = Math.max(merged.retryAttempt, file.retryAttempt);
+            // and counts as queued since its oldest source arrived
+            if (file.receivedAt > 0 && (merged.receivedAt == 0 || file.receivedAt < merged.receivedAt)) {
+                merged.receivedAt = file.receivedAt;
+            }
+            if (merged.traceparent == null) {
+                merged.traceparent = file.traceparent;
+            }
+            if (merged.resourceType != null && !merged.resourceType.equals(file.resourceType)) {
+                merged.resourceType = null;
+            }
+        }
+
+        logger.log(Level.INFO, "Compacted {0} files with {1} lines into {2}.",
+                new Object[] { files.size(), merged.lineCount, targetName });
+
+        return merged;
+    }
+
+    private static List<String> stageFile(BlockBlobClient target, BlobClient source, int index) throws IOException {
+        long size = source.getProperties().getBlobSize();
+        if (size == 0) {
+            return List.of();
+        }
+
+        String sas = source.generateSas(new BlobServiceSasSignatureValues(OffsetDateTime.now().plusHours(1),
+                new BlobSasPermission().setReadPermission(true)));
+        String contentBlockId = Helper.blockId(2L * index);
+        target.stageBlockFromUrl(contentBlockId, source.getBlobUrl() + "?" + sas, null);
+
+        // the next file's first record must start on a new line
+        int lastByte;
+        try (InputStream stream = source.openInputStream(new BlobRange(size - 1, 1L), null)) {
+            lastByte = stream.read();
+        }
+        if (lastByte == '\n') {
+            return List.of(contentBlockId);
+        }
+
+        String newlineBlockId = Helper.blockId(2L * index + 1);
+        target.stageBlock(newlineBlockId, NEWLINE);
+        return List.of(contentBlockId, newlineBlockId);
+    }
+}
@@ -0,0 +1,225 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.models.BlobProperties;
+import com.azure.storage.blob.models.BlobRange;
+import com.azure.storage.blob.models.BlobRequestConditions;
+import com.hephaestus.models.NdJsonScanResult;
+
+import io.opentelemetry.context.Context;
+
+/*
+ * Counts the records of an NDJSON blob and tallies their resourceType without materializing lines.
+ * The blob is split into ranges that are streamed in parallel. Each range counts the newlines that
+ * fall inside it and sniffs the type of every line that starts inside it, reading a little past its
+ * end if the last line's type hasn't shown up yet. Memory use is one buffer per worker, whatever
+ * the size of the file.
+ */
+public final class NdJsonScanner {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // how far past the end of a range we read to finish sniffing the type of its last line
+    private static final int SNIFF_LOOKAHEAD = 64 * 1024;
+
+    private NdJsonScanner() {
+    }
+
+    // opens a stream over count bytes of the source starting at offset
+    public interface RangeReader {
+        InputStream open(long offset, long count) throws IOException;
+    }
+
+    public static NdJsonScanResult scan(BlobClient blobClient, int parallelism, long rangeSize) throws IOException {
+        BlobProperties properties = blobClient.getProperties();
+
+        // every range must see the same version of the blob
+        BlobRequestConditions unchanged = new BlobRequestConditions().setIfMatch(properties.getETag());
+
+        return scan(blobClient.getBlobName(), properties.getBlobSize(),
+                (offset, count) -> blobClient.openInputStream(new BlobRange(offset, count), unchanged),
+                parallelism, rangeSize);
+    }
+
+    public static NdJsonScanResult scan(String filename, long size, RangeReader reader, int parallelism,
+            long rangeSize) throws IOException {
+        List<long[]> ranges = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += rangeSize) {
+            ranges.add(new long[] { offset, Math.min(rangeSize, size - offset) });
+        }
+
+        List<RangeStats> rangeStats = new ArrayList<>();
+        if (!ranges.isEmpty()) {
+            ExecutorService executor = Context.taskWrapping(
+                    Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, ranges.size()))));
+            try {
+                List<Future<RangeStats>> futures = new ArrayList<>();
+                for (long[] range : ranges) {
+                    futures.add(executor.submit(() -> scanRange(reader, range[0], range[1], size)));
+                }
+                for (Future<RangeStats> future : futures) {
+                    rangeStats.add(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Scan of " + filename + " was interrupted", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Scan of " + filename + " failed: " + e.getCause().getMessage(), e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        // stitch the ranges together, a line may be spread over any number of them
+        NdJsonScanResult result = new NdJsonScanResult();
+        result.filename = filename;
+        result.byteCount = size;
+        result.resourceTypeCounts = new HashMap<>();
+
+        boolean openLineHasContent = false;
+        for (RangeStats stats : rangeStats) {
+            stats.resourceTypeCounts.forEach((type, count) -> result.resourceTypeCounts.merge(type, count, Long::sum));
+
+            if (!stats.sawNewline) {
+                openLineHasContent |= stats.contentBeforeFirstNewline;
+                continue;
+            }
+            if (openLineHasContent || stats.contentBeforeFirstNewline) {
+                result.lineCount++;
+            }
+            result.lineCount += stats.completeLines;
+            openLineHasContent = stats.contentAfterLastNewline;
+        }
+
+        // last line without a trailing newline
+        if (openLineHasContent) {
+            result.lineCount++;
+        }
+
+        return result;
+    }
+
+    private static RangeStats scanRange(RangeReader reader, long offset, long length, long size) throws IOException {
+        RangeStats stats = new RangeStats();
+        ResourceTypeSniffer sniffer = new ResourceTypeSniffer();
+
+        long rangeEnd = offset + length;
+        // read the byte before the range to know whether it starts on a fresh line
+        long readStart = offset == 0 ? 0 : offset - 1;
+        long readEnd = Math.min(size, rangeEnd + SNIFF_LOOKAHEAD);
+
+        // start of the line under the cursor, -1 while it is a line that started before this range
+        long lineStart = offset == 0 ? 0 : -1;
+        boolean lineHasContent = false;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = readStart;
+
+        try (InputStream stream = reader.open(readStart, readEnd - readStart)) {
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                int start = 0;
+                if (position < offset) {
+                    lineStart = buffer[0] == '\n' ? offset : -1;
+                    start = 1;
+                }
+
+                int inRangeEnd = (int) Math.max(start, Math.min(read, rangeEnd - position));
+                int segmentStart = start;
+
+                for (int i = start; i < inRangeEnd; i++) {
+                    byte b = buffer[i];
+                    if (b == '\n') {
+                        if (lineStart >= offset) {
+                            sniffer.feed(buffer, segmentStart, i);
+                            stats.addType(sniffer.finishLine());
+                        }
+                        stats.endLine(lineHasContent);
+                        lineHasContent = false;
+                        lineStart = position + i + 1;
+                        segmentStart = i + 1;
+                    } else if (!lineHasContent && b != ' ' && b != '\t' && b != '\r') {
+                        lineHasContent = true;
+                    }
+                }
+
+                if (inRangeEnd == read) {
+                    if (lineStart >= offset) {
+                        sniffer.feed(buffer, segmentStart, read);
+                    }
+                    position += read;
+                    continue;
+                }
+
+                // the rest of the buffer is lookahead, only used to finish the type of our last line
+                if (lineStart >= offset && lineStart < rangeEnd) {
+                    int newline = indexOfNewline(buffer, inRangeEnd, read);
+                    sniffer.feed(buffer, segmentStart, newline < 0 ? read : newline);
+                    if (newline < 0 && !sniffer.isDone()) {
+                        position += read;
+                        continue;
+                    }
+                }
+                break;
+            }
+        }
+
+        if (lineStart >= offset && lineStart < rangeEnd) {
+            stats.addType(sniffer.finishLine());
+        }
+        stats.endRange(lineHasContent);
+
+        return stats;
+    }
+
+    private static int indexOfNewline(byte[] buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static final class RangeStats {
+        boolean sawNewline;
+        // whether the line that ends at the first newline has content within this range
+        boolean contentBeforeFirstNewline;
+        // lines that both start and end inside this range
+        long completeLines;
+        boolean contentAfterLastNewline;
+        final Map<String, Long> resourceTypeCounts = new HashMap<>();
+
+        void endLine(boolean hasContent) {
+            if (!sawNewline) {
+                sawNewline = true;
+                contentBeforeFirstNewline = hasContent;
+            } else if (hasContent) {
+                completeLines++;
+            }
+        }
+
+        void endRange(boolean hasContent) {
+            if (sawNewline) {
+                contentAfterLastNewline = hasContent;
+            } else {
+                contentBeforeFirstNewline = hasContent;
+            }
+        }
+
+        void addType(String resourceType) {
+            if (resourceType != null) {
+                resourceTypeCounts.merge(resourceType, 1L, Long::sum);
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.hephaestus;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.common.Attributes;
+import io.opentelemetry.api.metrics.DoubleHistogram;
+import io.opentelemetry.api.metrics.LongCounter;
+import io.opentelemetry.api.metrics.Meter;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.ContextKey;
+import io.opentelemetry.context.Scope;
+
+/*
+ * Counters, gauges and histograms for the import pipeline, recorded through the OpenTelemetry API.
+ * Whatever agent the worker runs with (Application Insights, or the OpenTelemetry agent with an
+ * OTLP or Prometheus exporter) picks them up, without it every call is a no-op.
+ *
+ * Orchestrations are replayed, so only activities, triggers and clients record metrics.
+ */
+public final class PipelineMetrics {
+    private static final AttributeKey<String> ACTIVITY = AttributeKey.stringKey("hephaestus.activity");
+    private static final AttributeKey<String> SERVICE = AttributeKey.stringKey("hephaestus.service");
+    private static final AttributeKey<String> DIRECTION = AttributeKey.stringKey("hephaestus.direction");
+    private static final AttributeKey<String> BATCH_STATUS = AttributeKey.stringKey("hephaestus.batch.status");
+    private static final AttributeKey<String> CACHE = AttributeKey.stringKey("hephaestus.cache");
+    private static final AttributeKey<String> REASON = AttributeKey.stringKey("hephaestus.reason");
+    private static final AttributeKey<Long> STATUS_CODE = AttributeKey.longKey("http.response.status_code");
+
+    // function the current invocation is running for, executors wrapped with Context.taskWrapping carry it
+    private static final ContextKey<String> CURRENT_ACTIVITY = ContextKey.named("hephaestus.activity");
+
+    // batches found initiated by the last status check
+    private static final AtomicLong initiatedBatches = new AtomicLong();
+
+    private static final Meter meter = GlobalOpenTelemetry.getMeter("com.hephaestus");
+
+    private static final LongCounter queueMessages = meter.counterBuilder("hephaestus.queue.messages")
+            .setDescription("Queue messages processed")
+            .build();
+
+    private static final LongCounter duplicateFiles = meter.counterBuilder("hephaestus.queue.duplicates")
+            .setDescription("Queue messages skipped because their file content was already registered")
+            .build();
+
+    private static final DoubleHistogram queueToImport = meter.histogramBuilder("hephaestus.file.queue_to_import")
+            .setDescription("Time from a file's queue message until its batch is submitted to $import")
+            .setUnit("s")
+            .build();
+
+    private static final DoubleHistogram fillRatio = meter.histogramBuilder("hephaestus.batch.fill_ratio")
+            .setDescription("Resources in a submitted batch as a fraction of MAX_BATCH_SIZE")
+            .build();
+
+    private static final DoubleHistogram statusDuration = meter.histogramBuilder("hephaestus.batch.status_duration")
+            .setDescription("Time a batch spent in a BatchStatus before moving on")
+            .setUnit("s")
+            .build();
+
+    private static final LongCounter storageRequests = meter.counterBuilder("hephaestus.storage.requests")
+            .setDescription("Table and blob requests, by activity")
+            .build();
+
+    private static final LongCounter storageBytes = meter.counterBuilder("hephaestus.storage.bytes")
+            .setDescription("Table and blob payload bytes sent and received, by activity")
+            .setUnit("By")
+            .build();
+
+    private static final LongCounter quarantinedFiles = meter.counterBuilder("hephaestus.preflight.quarantined")
+            .setDescription("Files kept out of their batch by pre-flight validation, by reason")
+            .build();
+
+    private static final DoubleHistogram importSubmitDuration = meter.histogramBuilder("hephaestus.import.submit_duration")
+            .setDescription("Latency of $import requests, by status code")
+            .setUnit("s")
+            .build();
+
+    private static final DoubleHistogram importPollDuration = meter.histogramBuilder("hephaestus.import.poll_duration")
+            .setDescription("Latency of $import status requests, by status code")
+            .setUnit("s")
+            .build();
+
+    private static final DoubleHistogram importThroughput = meter.histogramBuilder("hephaestus.import.throughput")
+            .setDescription("Resources imported per second by each completed $import job")
+            .setUnit("{resource}/s")
+            .build();
+
+    static {
+        meter.gaugeBuilder("hephaestus.batches.initiated")
+                .setDescription("$import jobs running as of the last status check")
+                .ofLongs()
+                .buildWithCallback(measurement -> measurement.record(initiatedBatches.get()));
+    }
+
+    private PipelineMetrics() {
+    }
+
+    /*
+     * Attributes storage requests made until the scope is closed to the function. Worker threads are
+     * pooled, so the name must not outlive the invocation that set it.
+     */
+    public static Scope enterActivity(String functionName) {
+        return Context.current().with(CURRENT_ACTIVITY, functionName).makeCurrent();
+    }
+
+    public static String currentActivity() {
+        String activity = Context.current().get(CURRENT_ACTIVITY);
+        return activity == null ? "other" : activity;
+    }
+
+    public static void queueMessage() {
+        queueMessages.add(1);
+    }
+
+    // cache is memory when the LRU cache knew the file, table when the index row had to be read
+    public static void duplicateFile(String cache) {
+        duplicateFiles.add(1, Attributes.of(CACHE, cache));
+    }
+
+    public static void fileQueuedFor(long millis) {
+        queueToImport.record(millis / 1000.0);
+    }
+
+    public static void batchFillRatio(double ratio) {
+        fillRatio.record(ratio);
+    }
+
+    public static void batchStatusLeft(String batchStatus, long millis) {
+        statusDuration.record(millis / 1000.0, Attributes.of(BATCH_STATUS, batchStatus));
+    }
+
+    public static void storageRequest(String service, String activity, long bytesSent, long bytesReceived) {
+        storageRequests.add(1, Attributes.of(SERVICE, service, ACTIVITY, activity));
+        if (bytesSent > 0) {
+            storageBytes.add(bytesSent, Attributes.of(SERVICE, service, ACTIVITY, activity, DIRECTION, "sent"));
+        }
+        if (bytesReceived > 0) {
+            storageBytes.add(bytesReceived, Attributes.of(SERVICE, service, ACTIVITY, activity, DIRECTION, "received"));
+        }
+    }
+
+    public static void fileQuarantined(String reason) {
+        // content type reasons carry the type, keep the attribute's cardinality bounded
+        quarantinedFiles.add(1, Attributes.of(REASON, reason.startsWith("unsupported content type")
+                ? "unsupported content type" : reason));
+    }
+
+    public static void importSubmitted(int statusCode, long nanos) {
+        importSubmitDuration.record(nanos / 1e9, Attributes.of(STATUS_CODE, (long) statusCode));
+    }
+
+    public static void importPolled(int statusCode, long nanos) {
+        importPollDuration.record(nanos / 1e9, Attributes.of(STATUS_CODE, (long) statusCode));
+    }
+
+    public static void importCompleted(long resources, long millis) {
+        if (millis > 0) {
+            importThroughput.record(resources * 1000.0 / millis);
+        }
+    }
+
+    public static void initiatedBatches(long count) {
+        initiatedBatches.set(count);
+    }
+}
@@ -0,0 +1,214 @@
+package com.hephaestus;
+
+import java.net.http.HttpRequest;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import com.hephaestus.models.NdJsonReference;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanBuilder;
+import io.opentelemetry.api.trace.SpanContext;
+import io.opentelemetry.api.trace.SpanKind;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.api.trace.propagation.W3CTraceContextPropagator;
+import io.opentelemetry.context.Context;
+import io.opentelemetry.context.Scope;
+import io.opentelemetry.context.propagation.TextMapGetter;
+
+/*
+ * Trace context for a file's way through the pipeline. QueueProcessor starts the trace and its
+ * W3C traceparent travels with the NdJsonReference, the orchestration state and the table rows.
+ * A batch joins the trace of its first file and links the traces of the others. Activities,
+ * storage requests and FHIR calls are spans within it, and TimerStatusCheck closes it with a span
+ * covering the whole $import job.
+ *
+ * Orchestrations are replayed, so they only pass traceparents along and never start spans.
+ */
+public final class PipelineTracing {
+    private static final Tracer tracer = GlobalOpenTelemetry.getTracer("com.hephaestus");
+    private static final W3CTraceContextPropagator propagator = W3CTraceContextPropagator.getInstance();
+
+    private static final TextMapGetter<Map<String, String>> MAP_GETTER = new TextMapGetter<>() {
+        @Override
+        public Iterable<String> keys(Map<String, String> carrier) {
+            return carrier.keySet();
+        }
+
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+            return carrier == null ? null : carrier.get(key);
+        }
+    };
+
+    // no span at all, for work that isn't part of any file's trace
+    private static final Traced UNTRACED = new Traced(null);
+
+    private PipelineTracing() {
+    }
+
+    /*
+     * A span that is current on this thread until closed. Everything is a no-op for an untraced
+     * one, so callers don't need to check.
+     */
+    public static final class Traced implements AutoCloseable {
+        private final Span span;
+        private final Scope scope;
+
+        private Traced(Span span) {
+            this.span = span;
+            this.scope = span == null ? null : span.makeCurrent();
+        }
+
+        public String traceparent() {
+            return span == null ? null : PipelineTracing.traceparent(span);
+        }
+
+        public Traced setAttribute(String key, String value) {
+            if (span != null && value != null) {
+                span.setAttribute(key, value);
+            }
+            return this;
+        }
+
+        public Traced setAttribute(String key, long value) {
+            if (span != null) {
+                span.setAttribute(key, value);
+            }
+            return this;
+        }
+
+        public void fail(String description) {
+            if (span != null) {
+                span.setStatus(StatusCode.ERROR, description);
+            }
+        }
+
+        public void fail(Throwable e) {
+            if (span != null) {
+                span.recordException(e);
+                span.setStatus(StatusCode.ERROR, e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (span != null) {
+                scope.close();
+                span.end();
+            }
+        }
+    }
+
+    // continues the producer's trace if the message carried one, otherwise starts a new one
+    public static Traced startTrace(String name, SpanKind kind, String traceparent) {
+        return new Traced(spanBuilder(name, kind, traceparent).startSpan());
+    }
+
+    // a span within the given trace, untraced when there is none
+    public static Traced joinTrace(String name, String traceparent) {
+        return traceparent == null ? UNTRACED : new Traced(spanBuilder(name, SpanKind.INTERNAL, traceparent).startSpan());
+    }
+
+    // a span for work on several files, in the first traced one's trace and linked to the others
+    public static Traced joinTrace(String name, List<NdJsonReference> files) {
+        String traceparent = files.stream().map(file -> file.traceparent).filter(Objects::nonNull).findFirst()
+                .orElse(null);
+        if (traceparent == null) {
+            return UNTRACED;
+        }
+
+        SpanBuilder builder = spanBuilder(name, SpanKind.INTERNAL, traceparent);
+        for (NdJsonReference file : files) {
+            if (file.traceparent == null || file.traceparent.equals(traceparent)) {
+                continue;
+            }
+            SpanContext linkedContext = Span.fromContext(extract(file.traceparent)).getSpanContext();
+            if (linkedContext.isValid()) {
+                builder.addLink(linkedContext);
+            }
+        }
+        return new Traced(builder.startSpan());
+    }
+
+    // a span that began before this invocation, e.g. an $import job accepted by an earlier one
+    public static Traced joinTrace(String name, String traceparent, Instant startedAt) {
+        return traceparent == null ? UNTRACED
+                : new Traced(spanBuilder(name, SpanKind.INTERNAL, traceparent).setStartTimestamp(startedAt).startSpan());
+    }
+
+    /*
+     * The rest is for asynchronous calls, whose continuations run on other threads. Their spans
+     * are never current, they are started with an explicit parent and ended by the call itself.
+     */
+
+    // a span within the given trace, null when there is none
+    public static Span startSpan(String name, String traceparent) {
+        return traceparent == null ? null : spanBuilder(name, SpanKind.INTERNAL, traceparent).startSpan();
+    }
+
+    // a child of the given context, null when nothing is being traced
+    public static Span startChildSpan(String name, SpanKind kind, Context parent) {
+        if (!Span.fromContext(parent).getSpanContext().isValid()) {
+            return null;
+        }
+        return tracer.spanBuilder(name).setParent(parent).setSpanKind(kind).startSpan();
+    }
+
+    // the context to start children of the span in
+    public static Context contextOf(Span span) {
+        return span == null ? Context.root() : Context.root().with(span);
+    }
+
+    public static void end(Span span, int statusCode) {
+        if (span != null) {
+            span.setAttribute("http.response.status_code", statusCode);
+            if (statusCode >= 400) {
+                span.setStatus(StatusCode.ERROR);
+            }
+            span.end();
+        }
+    }
+
+    public static void end(Span span, Throwable error) {
+        if (span != null) {
+            span.recordException(error);
+            span.setStatus(StatusCode.ERROR, error.getMessage());
+            span.end();
+        }
+    }
+
+    public static void end(Span span) {
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    // propagates the span to the FHIR service
+    public static HttpRequest.Builder inject(HttpRequest.Builder request, Span span) {
+        if (span != null) {
+            propagator.inject(contextOf(span), request, HttpRequest.Builder::header);
+        }
+        return request;
+    }
+
+    private static String traceparent(Span span) {
+        Map<String, String> carrier = new HashMap<>();
+        propagator.inject(Context.root().with(span), carrier, Map::put);
+        return carrier.get("traceparent");
+    }
+
+    private static SpanBuilder spanBuilder(String name, SpanKind kind, String traceparent) {
+        SpanBuilder builder = tracer.spanBuilder(name).setSpanKind(kind);
+        return traceparent == null ? builder.setNoParent() : builder.setParent(extract(traceparent));
+    }
+
+    private static Context extract(String traceparent) {
+        return propagator.extract(Context.root(), Map.of("traceparent", traceparent), MAP_GETTER);
+    }
+}
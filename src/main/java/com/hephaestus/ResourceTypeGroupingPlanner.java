@@ -0,0 +1,36 @@
+package com.hephaestus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Plans every resource type tier of the pending pool on its own, so a batch only ever holds
+ * types of one tier, and hands back the batches of the earlier tiers first. The ready queue is
+ * FIFO, so reference targets are imported ahead of the resources that point at them.
+ */
+public class ResourceTypeGroupingPlanner implements BatchPlanner {
+    private final BatchPlanner delegate;
+
+    public ResourceTypeGroupingPlanner(BatchPlanner delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public List<List<NdJsonReference>> plan(List<NdJsonReference> pending, long capacity, long fillTarget,
+            boolean flush) {
+        Map<Integer, List<NdJsonReference>> tiers = new TreeMap<>();
+        for (NdJsonReference file : pending) {
+            tiers.computeIfAbsent(ResourceTypeTiers.tierOf(file.resourceType), tier -> new ArrayList<>()).add(file);
+        }
+
+        List<List<NdJsonReference>> sealed = new ArrayList<>();
+        for (List<NdJsonReference> tier : tiers.values()) {
+            sealed.addAll(delegate.plan(tier, capacity, fillTarget, flush));
+        }
+        return sealed;
+    }
+}
@@ -0,0 +1,89 @@
+package com.hephaestus;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+
+/*
+ * Picks the resourceType out of one NDJSON line at a time without ever holding the whole line.
+ * Bytes are pushed into a non-blocking Jackson parser only until the top level resourceType
+ * field has been read, the rest of the line is ignored. Not thread safe, use one per stream.
+ */
+public class ResourceTypeSniffer {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private JsonParser parser;
+    private int depth;
+    private boolean nextValueIsType;
+    private boolean done;
+    private String resourceType;
+
+    // feeds the next part of the current line, the range must not contain the newline itself
+    public void feed(byte[] buffer, int start, int end) {
+        if (done || start >= end) {
+            return;
+        }
+
+        try {
+            if (parser == null) {
+                parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+            }
+            ((ByteArrayFeeder) parser.getNonBlockingInputFeeder()).feedInput(buffer, start, end);
+
+            JsonToken token;
+            while (!done && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                switch (token) {
+                    case START_OBJECT, START_ARRAY -> depth++;
+                    case END_OBJECT, END_ARRAY -> done = --depth == 0;
+                    case VALUE_STRING -> {
+                        if (nextValueIsType) {
+                            resourceType = parser.getText();
+                            done = true;
+                        }
+                    }
+                    default -> {
+                    }
+                }
+                nextValueIsType = token == JsonToken.FIELD_NAME && depth == 1
+                        && "resourceType".equals(parser.currentName());
+            }
+        } catch (IOException e) {
+            // not valid json, the line simply has no type
+            done = true;
+        }
+
+        if (done) {
+            close();
+        }
+    }
+
+    // true once the type is known or can no longer be found on this line
+    public boolean isDone() {
+        return done;
+    }
+
+    // ends the current line and returns its resourceType, or null if it had none
+    public String finishLine() {
+        String result = resourceType;
+        close();
+        depth = 0;
+        nextValueIsType = false;
+        done = false;
+        resourceType = null;
+        return result;
+    }
+
+    private void close() {
+        if (parser != null) {
+            try {
+                parser.close();
+            } catch (IOException e) {
+                // nothing to release
+            }
+            parser = null;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.hephaestus;
+
+import java.util.Set;
+
+/*
+ * Orders FHIR resource types so that the targets of references are imported before the resources
+ * that point at them, e.g. Patient and Practitioner before Encounter, Encounter before Observation.
+ * Files without a single known type go last.
+ */
+public final class ResourceTypeTiers {
+    // resources that are mostly referenced and rarely reference anything themselves
+    private static final Set<String> REFERENCE_TARGETS = Set.of(
+            "Organization", "Location", "Practitioner", "PractitionerRole", "Patient", "RelatedPerson",
+            "Group", "Device", "Medication", "Substance", "HealthcareService", "Endpoint");
+    // resources that most clinical data hangs off
+    private static final Set<String> CONTEXTS = Set.of(
+            "Encounter", "EpisodeOfCare", "Coverage", "Account", "CareTeam", "CarePlan", "ServiceRequest",
+            "Appointment");
+
+    public static final int UNTYPED = 3;
+
+    private ResourceTypeTiers() {
+    }
+
+    public static int tierOf(String resourceType) {
+        if (resourceType == null) {
+            return UNTYPED;
+        }
+        if (REFERENCE_TARGETS.contains(resourceType)) {
+            return 0;
+        }
+        if (CONTEXTS.contains(resourceType)) {
+            return 1;
+        }
+        return 2;
+    }
+}
@@ -0,0 +1,140 @@
+package com.hephaestus;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.azure.storage.blob.BlobClient;
+import com.azure.storage.blob.BlobContainerClient;
+import com.azure.storage.blob.models.BlobRange;
+import com.hephaestus.models.NdJsonReference;
+
+/*
+ * Writes the records of a source file that an $import job rejected into a new, much smaller file.
+ * The error logs are streamed to collect the failed line numbers, then the source is streamed once
+ * per stream start offset the server reported and only the failed lines are copied.
+ *
+ * The FHIR service numbers lines from 0, relative to its stream start offset: line 0 is the first
+ * line that starts at or after the offset, and every line after it counts, blank ones included.
+ */
+public final class RetryFileBuilder {
+    private RetryFileBuilder() {
+    }
+
+    // returns the retry file, or null if none of the failures could be traced back to a line
+    public static NdJsonReference build(NdJsonReference source, List<String> errorUrls, Logger logger)
+            throws IOException {
+        BlobContainerClient containerClient = AzureClients.getBlobContainerClient();
+
+        // failed line numbers per stream start offset
+        Map<Long, TreeSet<Long>> failedLines = new TreeMap<>();
+        long unlocated = 0;
+        for (String errorUrl : errorUrls) {
+            try (InputStream errorLog = Helper.openBlobUrl(errorUrl)) {
+                unlocated += collectFailedLines(errorLog, failedLines);
+            }
+        }
+
+        if (unlocated > 0) {
+            logger.log(Level.WARNING, "{0} errors for {1} don't say which line failed and can't be retried.",
+                    new Object[] { unlocated, source.filename });
+        }
+        if (failedLines.isEmpty()) {
+            return null;
+        }
+
+        // one retry file per attempt, a retried activity overwrites its own output
+        String baseName = source.filename.replaceAll("\\.ndjson$", "").replaceAll("-retry-\\d+$", "");
+        NdJsonReference retry = new NdJsonReference();
+        retry.filename = baseName + "-retry-" + (source.retryAttempt + 1) + ".ndjson";
+        retry.resourceType = source.resourceType;
+        retry.retryAttempt = source.retryAttempt + 1;
+        // retried records stay in the trace of the file they came from
+        retry.traceparent = source.traceparent;
+
+        BlobClient sourceClient = containerClient.getBlobClient(source.filename);
+        try (OutputStream output = containerClient.getBlobClient(retry.filename).getBlockBlobClient()
+                .getBlobOutputStream(true)) {
+            for (Map.Entry<Long, TreeSet<Long>> lines : failedLines.entrySet()) {
+                retry.lineCount += copyLines(sourceClient, lines.getKey(), lines.getValue(), output);
+            }
+        }
+
+        logger.log(Level.INFO, "Wrote {0} failed records of {1} to {2}.",
+                new Object[] { retry.lineCount, source.filename, retry.filename });
+
+        return retry;
+    }
+
+    // adds the failed lines of the error log to failedLines, returns how many errors had no line
+    static long collectFailedLines(InputStream errorLog, Map<Long, TreeSet<Long>> failedLines) throws IOException {
+        long[] unlocated = new long[1];
+        ErrorLogReader.read(errorLog, entry -> {
+            if (entry.line < 0) {
+                unlocated[0]++;
+            } else {
+                failedLines.computeIfAbsent(entry.offset, offset -> new TreeSet<>()).add(entry.line);
+            }
+        });
+        return unlocated[0];
+    }
+
+    private static int copyLines(BlobClient source, long offset, TreeSet<Long> lines, OutputStream output)
+            throws IOException {
+        // read the byte before the offset to know whether the offset starts a line
+        long start = offset == 0 ? 0 : offset - 1;
+        try (InputStream input = new BufferedInputStream(source.openInputStream(new BlobRange(start), null),
+                64 * 1024)) {
+            return copyLines(input, offset, lines, output);
+        }
+    }
+
+    /*
+     * Copies the given lines, numbered as the FHIR service does, to output and returns how many it
+     * copied. The input starts at the byte before the offset, or at 0 when the offset is 0.
+     */
+    static int copyLines(InputStream input, long offset, TreeSet<Long> lines, OutputStream output)
+            throws IOException {
+        int copied = 0;
+        long last = lines.last();
+
+        int b;
+        if (offset > 0) {
+            while ((b = input.read()) != -1 && b != '\n') {
+                // skip the rest of the line that started before the offset
+            }
+        }
+
+        long line = 0;
+        boolean copying = lines.contains(0L);
+        boolean wroteContent = false;
+        while (line <= last && (b = input.read()) != -1) {
+            if (copying) {
+                output.write(b);
+                wroteContent = true;
+            }
+            if (b == '\n') {
+                if (copying) {
+                    copied++;
+                    wroteContent = false;
+                }
+                line++;
+                copying = lines.contains(line);
+            }
+        }
+
+        // the source's last line had no trailing newline
+        if (wroteContent) {
+            output.write('\n');
+            copied++;
+        }
+        return copied;
+    }
+}
\ No newline at end of file
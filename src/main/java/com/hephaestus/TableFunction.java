@@ -10,25 +10,56 @@ import com.microsoft.durabletask.azurefunctions.DurableActivityTrigger;
  * We will use it to persist batch information and the file references within the batch.
  * It will only care about saving and loading the information - not mutating it.
  * 
- * todos: investigate async/await, error handling, and loggiSaveBatchReferenceng
+ * The table work itself is asynchronous, but the Java worker needs an activity's result when it
+ * returns, so each activity blocks on it once, here at the boundary.
+ *
+ * todos: error handling, and loggiSaveBatchReferenceng
  */
 
 public class TableFunction {
         @FunctionName("SaveBatchReference")
-        public void saveToTable(
+        public BatchReference saveToTable(
                         @DurableActivityTrigger(name = "SaveBatchReference") final BatchReference batchReference,
                         final ExecutionContext context) {
                 var logger = context.getLogger();
-                Helper.saveBatchReference(batchReference, logger);
+                try (var activity = PipelineMetrics.enterActivity(context.getFunctionName());
+                                var traced = PipelineTracing.joinTrace("SaveBatchReference",
+                                                batchReference.Traceparent)) {
+                        return AzureClients.withCallerContext(Helper.saveBatchReference(batchReference, logger))
+                                        .block();
+                }
         }
 
-        // parameter discardString is required to satisfy the DurableActivityTrigger
+        // loads the single batch in the given status, e.g. staging
         @FunctionName("LoadBatchReference")
         public BatchReference loadFromTable(
-                        @DurableActivityTrigger(name = "LoadBatchReference") String discardString,
+                        @DurableActivityTrigger(name = "LoadBatchReference") String batchStatus,
                         final ExecutionContext context) {
                 var logger = context.getLogger();
-                var batchReference = Helper.loadBatchReference(logger);
-                return batchReference;
+                try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+                        return AzureClients.withCallerContext(Helper.loadBatchReference(batchStatus, logger)).block();
+                }
+        }
+
+        // loads a batch by id, null if it doesn't exist
+        @FunctionName("LoadBatchReferenceById")
+        public BatchReference loadByIdFromTable(
+                        @DurableActivityTrigger(name = "LoadBatchReferenceById") String batchId,
+                        final ExecutionContext context) {
+                try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+                        return AzureClients.withCallerContext(
+                                        Helper.loadBatchReferenceById(batchId, context.getLogger())).block();
+                }
+        }
+
+        // ids of every batch in the given status, e.g. ready
+        @FunctionName("ListBatchIds")
+        public String[] listBatchIds(
+                        @DurableActivityTrigger(name = "ListBatchIds") String batchStatus,
+                        final ExecutionContext context) {
+                try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+                        return AzureClients.withCallerContext(Helper.listBatchIds(batchStatus)).block()
+                                        .toArray(new String[0]);
+                }
         }
 }
@@ -1,169 +1,338 @@
 package com.hephaestus;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 import org.apache.commons.lang3.tuple.Pair;
 
 import com.microsoft.azure.functions.annotation.*;
 
-import com.azure.core.credential.AccessToken;
-import com.azure.core.credential.TokenCredential;
-import com.azure.core.credential.TokenRequestContext;
-import com.azure.data.tables.TableClient;
-import com.azure.data.tables.TableServiceClient;
-import com.azure.data.tables.TableServiceClientBuilder;
+import com.azure.data.tables.TableAsyncClient;
 import com.azure.data.tables.models.ListEntitiesOptions;
 import com.azure.data.tables.models.TableEntity;
-import com.azure.identity.DefaultAzureCredentialBuilder;
+import com.azure.data.tables.models.TableEntityUpdateMode;
+import com.azure.data.tables.models.TableTransactionAction;
+import com.azure.data.tables.models.TableTransactionActionType;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hephaestus.models.BatchErrors;
 import com.hephaestus.models.BatchStatusResponse;
 import com.hephaestus.models.BatchStatusResponse.Error;
 import com.hephaestus.models.BatchStatusResponse.Output;
+import com.hephaestus.models.ErrorLogReference;
+import com.microsoft.durabletask.DurableTaskClient;
+import com.microsoft.durabletask.NewOrchestrationInstanceOptions;
+import com.microsoft.durabletask.azurefunctions.DurableClientContext;
+import com.microsoft.durabletask.azurefunctions.DurableClientInput;
 import com.microsoft.azure.functions.*;
 
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.SpanKind;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
 /*
  * This function runs every 3 minutes to check find all initiated batches in the table
  * then places a message on a queue to have the batch status url queried for the new status by 
  * the import-processing function.
  */
 public class TimerStatusCheck {
+    private static final int MAX_JOB_FAILURE_LENGTH = 1000;
+
     @FunctionName("TimerStatusCheck")
     public void run(
             @TimerTrigger(name = "timerInfo", schedule = "0 * * * * *") String timerInfo,
+            @DurableClientInput(name = "durableContext") DurableClientContext durableContext,
             final ExecutionContext context) {
-        Logger logger = context.getLogger();
-
-        // Initialize TableServiceClient
-        TableServiceClient tableServiceClient = new TableServiceClientBuilder()
-                .connectionString(System.getenv("FHIR_STORAGE_CONN_STR"))
-                .buildClient();
-
-        // Get a reference to the table
-        TableClient tableClient = tableServiceClient.getTableClient(System.getenv("FHIR_STORAGE_TABLE"));
-
-        // Process only entities that have a Batch Status of initiated
-        ListEntitiesOptions options = new ListEntitiesOptions().setFilter("BatchStatus eq 'initiated'");
-        List<TableEntity> entities = tableClient.listEntities(options, null, null).stream().toList();
-
-        for (TableEntity entity : entities) {
-            try {
-                Object batchStatusUrlObj = entity.getProperty("BatchStatusUrl");
-                if (batchStatusUrlObj == null) {
-                    logger.severe("BatchReferenceUrl is null for entity: " + entity.getRowKey());
-                    // todo: see note in next exception
-                    continue;
-                }
-                String batchStatusUrl = batchStatusUrlObj.toString();
-
-                URL url;
-                try {
-                    url = new URL(batchStatusUrl);
-                } catch (MalformedURLException e) {
-                    logger.severe(batchStatusUrl + " is not a valid URL.");
-                    // todo: consider marking is invalid so as not to keep checking in the future...
-                    continue;
-                }
-
-                // get the access token for fhir
-                TokenCredential tokenCredential = new DefaultAzureCredentialBuilder().build();
-                TokenRequestContext tokenRequestContext = new TokenRequestContext();
-                tokenRequestContext.addScopes(System.getenv("FHIR_SERVER_URL") + "/.default");
-                AccessToken authToken = tokenCredential.getTokenSync(tokenRequestContext);
-
-                // fetch the status from the url
-                HttpClient client = HttpClient.newHttpClient();
-                HttpRequest request = HttpRequest.newBuilder()
-                        .uri(url.toURI())
-                        .header("Authorization", "Bearer " + authToken.getToken())
-                        .GET()
-                        .build();
-
-                HttpResponse<String> response;
-                try {
-                    response = client.send(request, BodyHandlers.ofString());
-                } catch (IOException | InterruptedException e) {
-                    logger.severe("Failed to fetch status from " + batchStatusUrl + " due to: " + e.getMessage());
-                    // todo: see earlier note about marking invalid but given that this could be a
-                    // transient error, maybe not pertinent
-                    continue;
-                }
-
-                // todo: read the response....
-                ObjectMapper mapper = new ObjectMapper();
-                BatchStatusResponse batchStatusResponse;
-
-                try {
-                    batchStatusResponse = mapper.readValue(response.body(),
-                            BatchStatusResponse.class);
-                } catch (JsonProcessingException e) {
-                    logger.severe(
-                            "Failed to deserialize response from " + batchStatusUrl + " due to: " + e.getMessage());
-                    return;
-                }
-
-                logger.info(batchStatusResponse.toString());
-
-                List<Pair<Output, Error>> results = batchStatusResponse.getAllResults();
-
-                Integer totalSuccessCount = 0;
-                Integer totalErrorCount = 0;
-
-                for (Pair<Output, Error> result : results) {
-                    String inputUrl = result.getLeft().getInputUrl() != null ? result.getLeft().getInputUrl()
-                            : result.getRight().getInputUrl();
-
-                    String[] parts = inputUrl.split("/");
-                    String lastPart = parts[parts.length - 1];
-
-                    // todo: update the ndjsonreference in the table that matches our entityId as
-                    // partition key and rowkey is the last part
-                    TableEntity ndJsonReferenceTableEntity = null;
-                    try {
-                        ndJsonReferenceTableEntity = tableClient.getEntity(entity.getRowKey(), lastPart);
-                    } catch (Exception e) {
-                        logger.severe("Failed to process ndJsonReference with filename " + lastPart
-                                + " in batch with ID " + entity.getRowKey()
-                                + " due to: " + e.getMessage());
-                        return;
+        try (var activity = PipelineMetrics.enterActivity(context.getFunctionName())) {
+            Logger logger = context.getLogger();
+
+            // Get a reference to the table
+            TableAsyncClient tableClient = AzureClients.getTableAsyncClient();
+
+            // Process only entities that have a Batch Status of initiated
+            ListEntitiesOptions options = new ListEntitiesOptions()
+                    .setFilter("PartitionKey eq '" + Helper.BATCH_PARTITION + "' and BatchStatus eq 'initiated'");
+            List<TableEntity> entities = AzureClients.withCallerContext(tableClient.listEntities(options).collectList())
+                    .block();
+            PipelineMetrics.initiatedBatches(entities.size());
+
+            if (entities.isEmpty()) {
+                return;
+            }
+
+            DurableTaskClient durableClient = durableContext.getClient();
+
+            final int concurrency = Helper.getIntSetting("STATUS_CHECK_CONCURRENCY", 8);
+            final int tickTimeoutSeconds = Helper.getIntSetting("STATUS_CHECK_TIMEOUT_SECONDS", 50);
+
+            // poll every batch concurrently so one slow status endpoint doesn't hold up the rest,
+            // the checks wait on the network without holding a thread each
+            AtomicInteger finished = new AtomicInteger();
+            AzureClients.withCallerContext(Flux.fromIterable(entities)
+                    .flatMap(entity -> checkBatch(entity, tableClient, durableClient, logger)
+                            .doOnSuccess(ignored -> finished.incrementAndGet()), concurrency)
+                    .then()
+                    // anything still running at the deadline is cancelled and picked up again next tick
+                    .timeout(Duration.ofSeconds(tickTimeoutSeconds), Mono.empty()))
+                    .block();
+
+            int unfinished = entities.size() - finished.get();
+            if (unfinished > 0) {
+                logger.warning(unfinished + " of " + entities.size()
+                        + " batch status checks did not finish within " + tickTimeoutSeconds + " seconds.");
+            }
+
+            AzureClients.logStatistics(logger);
+        }
+    }
+
+    // one follow up per batch, keyed by its id
+    private void startErrorProcessing(DurableTaskClient durableClient, BatchErrors errors, Logger logger) {
+        try {
+            durableClient.scheduleNewOrchestrationInstance(ErrorFunction.ERRORS_NAME,
+                    new NewOrchestrationInstanceOptions().setInstanceId("errors-" + errors.BatchId).setInput(errors));
+        } catch (RuntimeException e) {
+            logger.warning("Could not start error processing for batch " + errors.BatchId + ": " + e.getMessage());
+        }
+    }
+
+    // a span per check in the batch's trace, ended whichever way the check ends
+    private Mono<Void> checkBatch(TableEntity entity, TableAsyncClient tableClient, DurableTaskClient durableClient,
+            Logger logger) {
+        return Mono.defer(() -> {
+            Span check = PipelineTracing.startSpan("CheckBatchStatus", (String) entity.getProperty("Traceparent"));
+            return AzureClients.withTraceContext(pollBatch(entity, tableClient, durableClient, logger, check),
+                    PipelineTracing.contextOf(check))
+                    .doFinally(signal -> PipelineTracing.end(check));
+        });
+    }
+
+    private Mono<Void> pollBatch(TableEntity entity, TableAsyncClient tableClient, DurableTaskClient durableClient,
+            Logger logger, Span check) {
+        Object batchStatusUrlObj = entity.getProperty("BatchStatusUrl");
+        if (batchStatusUrlObj == null) {
+            logger.severe("BatchReferenceUrl is null for entity: " + entity.getRowKey());
+            // todo: see note in next exception
+            return Mono.empty();
+        }
+        String batchStatusUrl = batchStatusUrlObj.toString();
+
+        URI uri;
+        try {
+            uri = new URL(batchStatusUrl).toURI();
+        } catch (MalformedURLException | URISyntaxException e) {
+            logger.severe(batchStatusUrl + " is not a valid URL.");
+            // todo: consider marking is invalid so as not to keep checking in the future...
+            return Mono.empty();
+        }
+
+        // get the access token for fhir
+        return Mono.fromFuture(FhirTokenProvider::getFhirTokenAsync)
+                .flatMap(authToken -> {
+                    // fetch the status from the url
+                    HttpRequest.Builder request = HttpRequest.newBuilder()
+                            .uri(uri)
+                            .header("Authorization", "Bearer " + authToken.getToken())
+                            .timeout(Duration.ofSeconds(Helper.getIntSetting("STATUS_CHECK_REQUEST_TIMEOUT_SECONDS", 30)))
+                            .GET();
+
+                    Span http = PipelineTracing.startChildSpan("GET $import status", SpanKind.CLIENT,
+                            PipelineTracing.contextOf(check));
+                    final long sent = System.nanoTime();
+                    return Mono.fromFuture(() -> AzureClients.sendFhirRequest(
+                            PipelineTracing.inject(request, http).build(), BodyHandlers.ofString()))
+                            .doOnNext(response -> {
+                                PipelineTracing.end(http, response.statusCode());
+                                PipelineMetrics.importPolled(response.statusCode(), System.nanoTime() - sent);
+                            })
+                            .onErrorResume(IOException.class, e -> {
+                                PipelineTracing.end(http, e);
+                                logger.severe("Failed to fetch status from " + batchStatusUrl + " due to: " + e.getMessage());
+                                // todo: see earlier note about marking invalid but given that this could be a
+                                // transient error, maybe not pertinent
+                                return Mono.empty();
+                            });
+                })
+                // the job is still running or the service is busy, check again next tick
+                .filter(response -> response.statusCode() != 202
+                        && !FhirImportFunction.isTransient(response.statusCode()))
+                // only a 200 carries the job's results, any other answer is a job that ended without them
+                .flatMap(response -> response.statusCode() == 200
+                        ? completeBatch(entity, response.body(), batchStatusUrl, tableClient, durableClient, logger)
+                        : failBatch(entity, response.statusCode(), response.body(), tableClient, durableClient,
+                                logger))
+                .onErrorResume(e -> {
+                    logger.severe("Failed to process entity: " + entity.getRowKey() + " due to: " + e.getMessage());
+                    return Mono.empty();
+                });
+    }
+
+    /*
+     * Marks the batch jobFailed and frees its import slot. The server answers a job it gave up on, or
+     * no longer knows, with a 4xx OperationOutcome instead of results, polling it again would keep
+     * the batch initiated and its slot taken for good.
+     */
+    private Mono<Void> failBatch(TableEntity entity, int statusCode, String responseBody,
+            TableAsyncClient tableClient, DurableTaskClient durableClient, Logger logger) {
+        logger.severe("$import job of batch " + entity.getRowKey() + " failed with status code " + statusCode
+                + ": " + responseBody);
+
+        // the start of the OperationOutcome is enough to tell what went wrong
+        String reason = responseBody == null ? "" : responseBody;
+        TableEntity batchEntity = new TableEntity(entity.getPartitionKey(), entity.getRowKey());
+        batchEntity.addProperty("BatchStatus", "jobFailed");
+        batchEntity.addProperty("JobFailure",
+                statusCode + " " + reason.substring(0, Math.min(reason.length(), MAX_JOB_FAILURE_LENGTH)));
+
+        // like a completion, the header goes last so a failed notification is retried next tick
+        return Mono.fromRunnable(() -> Helper.notifyImportCompleted(durableClient, entity.getRowKey(), logger))
+                // the durable client blocks, keep it off the netty threads
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(tableClient.updateEntity(batchEntity, TableEntityUpdateMode.MERGE))
+                .then(Mono.fromRunnable(() -> {
+                    if (entity.getTimestamp() != null) {
+                        PipelineMetrics.batchStatusLeft("initiated",
+                                System.currentTimeMillis() - entity.getTimestamp().toInstant().toEpochMilli());
+
+                        try (var job = PipelineTracing.joinTrace("$import job",
+                                (String) entity.getProperty("Traceparent"), entity.getTimestamp().toInstant())) {
+                            job.setAttribute("hephaestus.batch", entity.getRowKey())
+                                    .setAttribute("hephaestus.batch.status", "jobFailed");
+                            job.fail("$import job failed with status code " + statusCode);
+                        }
                     }
+                }))
+                .then();
+    }
+
+    private Mono<Void> completeBatch(TableEntity entity, String responseBody, String batchStatusUrl,
+            TableAsyncClient tableClient, DurableTaskClient durableClient, Logger logger) {
+        // todo: read the response....
+        ObjectMapper mapper = new ObjectMapper();
+        BatchStatusResponse batchStatusResponse;
+
+        try {
+            batchStatusResponse = mapper.readValue(responseBody,
+                    BatchStatusResponse.class);
+        } catch (JsonProcessingException e) {
+            logger.severe(
+                    "Failed to deserialize response from " + batchStatusUrl + " due to: " + e.getMessage());
+            return Mono.empty();
+        }
 
-                    Integer outputCount = result.getLeft() == null ? 0 : result.getLeft().getCount();
-                    totalSuccessCount += outputCount;
-                    ndJsonReferenceTableEntity.getProperties().put("OutputCount", outputCount);
+        logger.info(batchStatusResponse.toString());
 
-                    Integer errorCount = result.getRight() == null ? 0 : result.getRight().getCount();
-                    totalErrorCount += errorCount;
-                    ndJsonReferenceTableEntity.getProperties().put("ErrorCount", errorCount);
+        List<Pair<Output, Error>> results = batchStatusResponse.getAllResults();
 
-                    tableClient.updateEntity(ndJsonReferenceTableEntity);
-                }
+        // a file can be reported more than once, e.g. per resource type, so sum per file first
+        Map<String, int[]> countsByFile = new LinkedHashMap<>();
+        List<ErrorLogReference> errorLogs = new ArrayList<>();
+        for (Pair<Output, Error> result : results) {
+            // either side of the pair may be missing
+            String inputUrl = result.getLeft() != null ? result.getLeft().getInputUrl()
+                    : result.getRight().getInputUrl();
 
-                // update the status in the table
-                entity.getProperties().put("TotalSuccessCount", totalSuccessCount);
-                entity.getProperties().put("TotalErrorCount", totalErrorCount);
+            String[] parts = inputUrl.split("/");
+            String lastPart = parts[parts.length - 1];
 
-                if (totalErrorCount == 0) {
-                    entity.getProperties().put("BatchStatus", "succeeded");
-                } else if (totalSuccessCount == 0) {
-                    entity.getProperties().put("BatchStatus", "fullfailure");
-                } else {
-                    entity.getProperties().put("BatchStatus", "partialfailure");
-                }
+            int[] counts = countsByFile.computeIfAbsent(lastPart, key -> new int[2]);
+            counts[0] += result.getLeft() == null ? 0 : result.getLeft().getCount();
+            counts[1] += result.getRight() == null ? 0 : result.getRight().getCount();
 
-                tableClient.updateEntity(entity);
-            } catch (Exception e) {
-                logger.severe("Failed to process entity: " + entity.getRowKey() + " due to: " + e.getMessage());
+            if (result.getRight() != null && result.getRight().getUrl() != null) {
+                ErrorLogReference errorLog = new ErrorLogReference();
+                errorLog.Filename = lastPart;
+                errorLog.ErrorUrl = result.getRight().getUrl();
+                errorLog.ErrorCount = result.getRight().getCount();
+                errorLog.ResourceType = result.getRight().getType();
+                errorLogs.add(errorLog);
             }
         }
+
+        // blind merges into the ndjsonreference rows, the batch id is their partition key and the
+        // filename their row key, so there is no need to read them first
+        List<TableTransactionAction> actions = new ArrayList<>();
+        for (Map.Entry<String, int[]> fileCounts : countsByFile.entrySet()) {
+            TableEntity ndJsonReferenceTableEntity = new TableEntity(entity.getRowKey(), fileCounts.getKey());
+            ndJsonReferenceTableEntity.addProperty("OutputCount", fileCounts.getValue()[0]);
+            ndJsonReferenceTableEntity.addProperty("ErrorCount", fileCounts.getValue()[1]);
+            actions.add(new TableTransactionAction(TableTransactionActionType.UPSERT_MERGE,
+                    ndJsonReferenceTableEntity));
+        }
+
+        // totals are aggregated by getAllResults in the same pass as the merge
+        int totalSuccessCount = batchStatusResponse.getTotalSuccessCount();
+        int totalErrorCount = batchStatusResponse.getTotalErrorCount();
+
+        // update the status in the table
+        TableEntity batchEntity = new TableEntity(entity.getPartitionKey(), entity.getRowKey());
+        batchEntity.addProperty("TotalSuccessCount", totalSuccessCount);
+        batchEntity.addProperty("TotalErrorCount", totalErrorCount);
+
+        String batchStatus;
+        if (totalErrorCount == 0) {
+            batchStatus = "succeeded";
+        } else if (totalSuccessCount == 0) {
+            batchStatus = "fullfailure";
+        } else {
+            batchStatus = "partialfailure";
+        }
+        batchEntity.addProperty("BatchStatus", batchStatus);
+
+        // the header goes last so a failed flush or notification leaves the batch initiated and it is
+        // retried next tick, the aggregator shrugs off a completion it has already heard of
+        return Helper.submitTransactions(tableClient, actions)
+                // the durable client blocks, keep it off the netty threads
+                .then(Mono.fromRunnable(() -> Helper.notifyImportCompleted(durableClient, entity.getRowKey(), logger))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then(tableClient.updateEntity(batchEntity, TableEntityUpdateMode.MERGE))
+                .then(Mono.fromRunnable(() -> {
+                    // the header was last written when the job was accepted
+                    if (entity.getTimestamp() != null) {
+                        long initiatedMillis = System.currentTimeMillis()
+                                - entity.getTimestamp().toInstant().toEpochMilli();
+                        PipelineMetrics.batchStatusLeft("initiated", initiatedMillis);
+                        PipelineMetrics.importCompleted(totalSuccessCount, initiatedMillis);
+
+                        // closes the batch's trace with a span for the whole job
+                        try (var job = PipelineTracing.joinTrace("$import job",
+                                (String) entity.getProperty("Traceparent"), entity.getTimestamp().toInstant())) {
+                            job.setAttribute("hephaestus.batch", entity.getRowKey())
+                                    .setAttribute("hephaestus.batch.status", batchStatus)
+                                    .setAttribute("hephaestus.import.success_count", totalSuccessCount)
+                                    .setAttribute("hephaestus.import.error_count", totalErrorCount);
+                            if (totalSuccessCount == 0) {
+                                job.fail("$import job imported nothing");
+                            }
+                        }
+                    }
+
+                    if (!errorLogs.isEmpty()) {
+                        BatchErrors errors = new BatchErrors();
+                        errors.BatchId = entity.getRowKey();
+                        errors.BatchStatus = batchStatus;
+                        errors.Traceparent = (String) entity.getProperty("Traceparent");
+                        errors.ErrorLogs = errorLogs;
+                        startErrorProcessing(durableClient, errors, logger);
+                    }
+                })
+                        // the durable client blocks, keep it off the netty threads
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then();
     }
 }
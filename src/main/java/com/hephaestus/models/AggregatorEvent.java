@@ -0,0 +1,12 @@
+package com.hephaestus.models;
+
+/*
+ * Everything the batch aggregator is told arrives as this one event, so a single waiter never
+ * misses one kind of event while it waits on another. Exactly one field is set.
+ */
+public class AggregatorEvent {
+    // a file to add to the pending pool
+    public NdJsonReference File;
+    // an $import job that reached a final status, freeing its slot
+    public String CompletedBatchId;
+}
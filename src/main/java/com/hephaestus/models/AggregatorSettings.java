@@ -0,0 +1,23 @@
+package com.hephaestus.models;
+
+/*
+ * The app settings the batch aggregator works with. Orchestrator code is replayed, so they are
+ * read by an activity at the start of every generation and carried in AggregatorState, a changed
+ * setting takes effect at the next continueAsNew.
+ */
+public class AggregatorSettings {
+    public int SuggestedMinFileSize;
+    public boolean CompactSmallFiles;
+    public int MaxBatchSize;
+    public int BatchFillTargetPercent;
+    // BATCH_PLANNER, null for the default planner
+    public String BatchPlanner;
+    public boolean BatchByResourceType;
+    public int BatchMaxHoldSeconds;
+    public int MaxConcurrentImports;
+    public int MaxFanOut;
+    public int CheckpointInterval;
+    public int EventsPerGeneration;
+    public int IdleSeconds;
+    public int ReconcileSeconds;
+}
@@ -0,0 +1,29 @@
+package com.hephaestus.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * State carried by the batch aggregator orchestration between events and across continueAsNew.
+ */
+public class AggregatorState {
+    // app settings as read at the start of the current generation
+    public AggregatorSettings Settings;
+    public BatchReference CurrentBatch;
+    // files added to CurrentBatch since it was last written to the table
+    public int UncheckpointedFiles;
+    // epoch millis at which the oldest file still pending in CurrentBatch arrived, 0 when none is
+    public long PendingSince;
+    // files below SUGGESTED_MIN_FILE_SIZE waiting to be compacted into one larger file
+    public BatchReference CompactionBatch;
+    // changes to CompactionBatch since it was last written to the table
+    public int UncheckpointedSmallFiles;
+    // number of batches this aggregator has started, used to derive deterministic batch ids
+    public long BatchSequence;
+    // sealed batches waiting for an import slot, oldest first
+    public List<String> ReadyBatchIds = new ArrayList<>();
+    // batches whose $import job has been accepted and hasn't completed yet
+    public List<String> InFlightBatchIds = new ArrayList<>();
+    // epoch millis at which InFlightBatchIds was last recounted from the table
+    public long ReconciledAt;
+}
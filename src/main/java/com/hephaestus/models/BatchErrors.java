@@ -0,0 +1,14 @@
+package com.hephaestus.models;
+
+import java.util.List;
+
+/*
+ * The error logs of a completed batch, handed from TimerStatusCheck to the ProcessBatchErrors
+ * orchestration.
+ */
+public class BatchErrors {
+    public String BatchId;
+    public String BatchStatus;
+    public String Traceparent;
+    public List<ErrorLogReference> ErrorLogs;
+}
@@ -1,6 +1,7 @@
 package com.hephaestus.models;
 
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class BatchReference {
@@ -9,4 +10,14 @@ public class BatchReference {
     public List<NdJsonReference> Files;
     public String BatchStatus;
     public String BatchStatusUrl;
+    // TotalResourceCount as a fraction of MAX_BATCH_SIZE when the batch was sealed
+    public double FillRatio;
+    // epoch millis of the header row's last write as read from the table, 0 if never read
+    public long LastModified;
+    // W3C trace context the batch's spans belong to, that of its first file
+    public String Traceparent;
+    // ETag of the header row as last read or written, null until the header exists
+    public String ETag;
+    // properties of each file row as last read or written, keyed by filename
+    public Map<String, Map<String, Object>> PersistedFiles;
 }
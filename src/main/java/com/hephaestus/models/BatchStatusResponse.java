@@ -1,11 +1,16 @@
 package com.hephaestus.models;
 
 import java.util.List;
+import java.util.Map;
 
+import org.apache.commons.lang3.tuple.MutablePair;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
 
 /*
 
@@ -38,13 +43,16 @@ Sample payload
 
  */
 
-// perform all aggregation of results and errors in getAllResults method as well as aggregate counts
-// in a single loop to improve performance
+// all aggregation of results and errors, as well as the aggregate counts, happens in a single pass
+// in getAllResults
 public class BatchStatusResponse implements Serializable {
     private String transactionTime;
     private String request;
     private List<Output> output;
     private List<Error> error;
+    // computed by getAllResults
+    private int totalSuccessCount;
+    private int totalErrorCount;
 
     public String getTransactionTime() {
         return transactionTime;
@@ -74,24 +82,47 @@ public class BatchStatusResponse implements Serializable {
         return error;
     }
 
+    public int getTotalSuccessCount() {
+        return totalSuccessCount;
+    }
+
+    public int getTotalErrorCount() {
+        return totalErrorCount;
+    }
+
+    /*
+     * Pairs every output with the error reported for the same input url. Errors without a matching
+     * output come back as (null, error), outputs without an error as (output, null). Outputs are
+     * indexed by input url so the merge is a single pass over each list, and the success and error
+     * totals are summed along the way.
+     */
     public List<Pair<Output, Error>> getAllResults() {
         List<Pair<Output, Error>> results = new ArrayList<Pair<Output, Error>>();
+        Map<String, Deque<MutablePair<Output, Error>>> unmatchedByInputUrl = new HashMap<>();
+
+        totalSuccessCount = 0;
+        totalErrorCount = 0;
 
-        for (var output : this.output) {
-            results.add(Pair.of(output, null));
+        if (this.output != null) {
+            for (var output : this.output) {
+                MutablePair<Output, Error> result = MutablePair.of(output, null);
+                results.add(result);
+                unmatchedByInputUrl.computeIfAbsent(output.inputUrl, key -> new ArrayDeque<>()).add(result);
+                totalSuccessCount += output.count;
+            }
         }
 
-        for (var error : this.error) {
-            Pair<Output, Error> result = results.stream()
-                    .filter(res -> res.getRight() == null && res.getLeft() != null
-                            && res.getLeft().getInputUrl().equals(error.inputUrl))
-                    .findFirst()
-                    .orElse(null);
+        if (this.error != null) {
+            for (var error : this.error) {
+                Deque<MutablePair<Output, Error>> unmatched = unmatchedByInputUrl.get(error.inputUrl);
+                MutablePair<Output, Error> result = unmatched == null ? null : unmatched.poll();
 
-            if (result == null) {
-                results.add(Pair.of(null, error));
-            } else {
-                result.setValue(error);
+                if (result == null) {
+                    results.add(Pair.of(null, error));
+                } else {
+                    result.setRight(error);
+                }
+                totalErrorCount += error.count;
             }
         }
 
@@ -0,0 +1,11 @@
+package com.hephaestus.models;
+
+/*
+ * One error log written by an $import job, with the input file whose failures it lists.
+ */
+public class ErrorLogReference {
+    public String Filename;
+    public String ErrorUrl;
+    public int ErrorCount;
+    public String ResourceType;
+}
@@ -0,0 +1,19 @@
+package com.hephaestus.models;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Aggregate of the error logs of a batch or of one of its files, small enough to sit on a table row.
+ */
+public class ErrorSummary {
+    public long ErrorCount;
+    // OperationOutcome issue code of each error
+    public Map<String, Long> IssueCodes = new TreeMap<>();
+    // resource type of the input each error was reported for
+    public Map<String, Long> ResourceTypes = new TreeMap<>();
+    // the first few error lines as written by the FHIR service
+    public List<String> Samples = new ArrayList<>();
+}
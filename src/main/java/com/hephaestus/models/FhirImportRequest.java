@@ -2,18 +2,24 @@ package com.hephaestus.models;
 
 import java.io.Serializable;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class FhirImportRequest implements Serializable {
     private String resourceType;
     private Parameter[] parameter;
 
+    @JsonInclude(JsonInclude.Include.NON_NULL)
     public static class Parameter {
         private String name;
         private String valueString;
         private Part[] part;
 
+        @JsonInclude(JsonInclude.Include.NON_NULL)
         public static class Part {
             private String name;
             private String valueUri;
+            private String valueString;
 
             // Getters and Setters
             public String getName() {
@@ -31,6 +37,14 @@ public class FhirImportRequest implements Serializable {
             public void setValueUri(String valueUri) {
                 this.valueUri = valueUri;
             }
+
+            public String getValueString() {
+                return valueString;
+            }
+
+            public void setValueString(String valueString) {
+                this.valueString = valueString;
+            }
         }
 
         // Getters and Setters
@@ -4,4 +4,14 @@ public class NdJsonReference {
     public String filename;
     public int lineCount;
     public boolean isLastFileInRequest;
+    // set when every record in the file has the same FHIR resource type
+    public String resourceType;
+    // how many times these records have already been re-imported after failing
+    public int retryAttempt;
+    // epoch millis at which the queue message for these records was processed, 0 if unknown
+    public long receivedAt;
+    // W3C trace context of the queue message, may be set by the producer to continue its trace
+    public String traceparent;
+    // why pre-flight validation kept the file out of its batch, null for a file that passed
+    public String quarantineReason;
 }
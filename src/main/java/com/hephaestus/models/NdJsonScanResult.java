@@ -0,0 +1,12 @@
+package com.hephaestus.models;
+
+import java.util.Map;
+
+public class NdJsonScanResult {
+    public String filename;
+    public long byteCount;
+    // non blank lines, i.e. records
+    public long lineCount;
+    // records per resourceType, records without a readable type are not counted here
+    public Map<String, Long> resourceTypeCounts;
+}
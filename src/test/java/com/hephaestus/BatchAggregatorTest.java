@@ -0,0 +1,151 @@
+package com.hephaestus;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import com.hephaestus.models.AggregatorState;
+import com.hephaestus.models.BatchReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for BatchAggregator.
+ */
+public class BatchAggregatorTest {
+    @Test
+    public void testReadyBatchesAreSubmittedTogetherUpToTheFreeSlots() {
+        AggregatorState state = new AggregatorState();
+        for (int i = 0; i < 6; i++) {
+            state.ReadyBatchIds.add(UUID.randomUUID().toString());
+        }
+        state.InFlightBatchIds.add("completed");
+        FakeRuntime runtime = new FakeRuntime();
+
+        new BatchAggregator(state, runtime).onImportCompleted("completed");
+
+        // MAX_CONCURRENT_IMPORTS defaults to 4, all of them go out in one fan-out
+        assertEquals(List.of("ImportBatch x4"), runtime.calls);
+        assertEquals(4, state.InFlightBatchIds.size());
+        assertEquals(2, state.ReadyBatchIds.size());
+    }
+
+    @Test
+    public void testRejectedSubmissionsFreeTheirSlotForTheNextBatch() {
+        AggregatorState state = new AggregatorState();
+        for (int i = 0; i < 5; i++) {
+            state.ReadyBatchIds.add(UUID.randomUUID().toString());
+        }
+        FakeRuntime runtime = new FakeRuntime();
+        runtime.rejected = state.ReadyBatchIds.get(1);
+
+        new BatchAggregator(state, runtime).onImportCompleted("unknown");
+
+        assertEquals(List.of("ImportBatch x4", "ImportBatch x1"), runtime.calls);
+        assertEquals(4, state.InFlightBatchIds.size());
+        assertFalse(state.InFlightBatchIds.contains(runtime.rejected));
+        assertTrue(state.ReadyBatchIds.isEmpty());
+    }
+
+    @Test
+    public void testInFlightBatchesAreRecountedFromTheTable() {
+        AggregatorState state = new AggregatorState();
+        state.InFlightBatchIds.addAll(List.of("lost-1", "lost-2", "lost-3", "running"));
+        state.ReadyBatchIds.add(UUID.randomUUID().toString());
+        FakeRuntime runtime = new FakeRuntime();
+        runtime.initiated = new String[] { "running" };
+        BatchAggregator aggregator = new BatchAggregator(state, runtime);
+
+        // every slot is taken, so only the recount lets the ready batch go
+        aggregator.onIdle();
+        assertEquals(List.of(), runtime.calls);
+        assertEquals(Duration.ofSeconds(300), aggregator.nextTimeout());
+
+        runtime.now = Instant.EPOCH.plusSeconds(300);
+        aggregator.onIdle();
+
+        assertEquals(List.of("ListBatchIds initiated", "ImportBatch x1"), runtime.calls);
+        assertEquals(2, state.InFlightBatchIds.size());
+        assertTrue(state.ReadyBatchIds.isEmpty());
+        assertNull(aggregator.nextTimeout());
+    }
+
+    @Test
+    public void testFailedSubmissionsStayAtTheHeadOfTheQueue() {
+        AggregatorState state = new AggregatorState();
+        for (int i = 0; i < 6; i++) {
+            state.ReadyBatchIds.add(UUID.randomUUID().toString());
+        }
+        List<String> order = new ArrayList<>(state.ReadyBatchIds);
+        FakeRuntime runtime = new FakeRuntime();
+        runtime.failed = order.get(2);
+        BatchAggregator aggregator = new BatchAggregator(state, runtime);
+
+        aggregator.onImportCompleted("unknown");
+
+        // the others of the fan-out still take their slots, the failed one waits for the next event
+        assertEquals(List.of("ImportBatch x4"), runtime.calls);
+        assertEquals(3, state.InFlightBatchIds.size());
+        assertEquals(List.of(order.get(2), order.get(4), order.get(5)), state.ReadyBatchIds);
+
+        runtime.failed = null;
+        aggregator.onIdle();
+
+        assertEquals(List.of("ImportBatch x4", "ImportBatch x1"), runtime.calls);
+        assertTrue(state.InFlightBatchIds.contains(order.get(2)));
+        assertEquals(List.of(order.get(4), order.get(5)), state.ReadyBatchIds);
+    }
+
+    // answers with the default settings and the initiated batches, and accepts every import but the rejected one
+    private static class FakeRuntime implements BatchAggregator.Runtime {
+        final List<String> calls = new ArrayList<>();
+        String rejected;
+        // a call with this input fails
+        String failed;
+        String[] initiated = new String[0];
+        Instant now = Instant.EPOCH;
+
+        @Override
+        public <V> V callActivity(String name, Object input, Class<V> returnType) {
+            if (name.equals("LoadAggregatorSettings")) {
+                return returnType.cast(BatchAggregator.readSettings());
+            }
+            if (name.equals("ListBatchIds")) {
+                calls.add(name + " " + input);
+                return returnType.cast(initiated);
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        @Override
+        public <V> List<V> callActivities(String name, List<?> inputs, Class<V> returnType) {
+            calls.add(name + " x" + inputs.size());
+            List<V> results = new ArrayList<>();
+            for (Object input : inputs) {
+                if (input.equals(failed)) {
+                    results.add(null);
+                    continue;
+                }
+                BatchReference batch = new BatchReference();
+                batch.BatchId = UUID.fromString((String) input);
+                batch.BatchStatusUrl = input.equals(rejected) ? "" : "https://fhir/_operations/import/1";
+                results.add(returnType.cast(batch));
+            }
+            return results;
+        }
+
+        @Override
+        public Instant now() {
+            return now;
+        }
+
+        @Override
+        public String instanceId() {
+            return "test";
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.hephaestus;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for BatchPreflight.
+ */
+public class BatchPreflightTest {
+    @Test
+    public void testPropertiesMustDescribeANonEmptyNdJsonBlob() {
+        Set<String> contentTypes = Set.of("application/fhir+ndjson", "application/octet-stream");
+
+        assertNull(BatchPreflight.checkProperties(10, "application/fhir+ndjson; charset=utf-8", contentTypes));
+        assertNull(BatchPreflight.checkProperties(10, null, contentTypes));
+        assertEquals("blob is empty", BatchPreflight.checkProperties(0, "application/fhir+ndjson", contentTypes));
+        assertEquals("unsupported content type image/png",
+                BatchPreflight.checkProperties(10, "image/png", contentTypes));
+    }
+
+    @Test
+    public void testFirstLineMustBeAFhirResource() {
+        assertNull(BatchPreflight.checkFirstLine(bytes("\uFEFF{\"resourceType\":\"Patient\"}\n{"), false));
+        assertNull(BatchPreflight.checkFirstLine(bytes("{\"resourceType\":\"Patient\""), false));
+        assertEquals("first line has no resourceType", BatchPreflight.checkFirstLine(bytes("{\"id\":\"1\"}"), true));
+        assertEquals("first line is not a JSON object", BatchPreflight.checkFirstLine(bytes("[1]\n"), true));
+        assertEquals("first line is not valid JSON", BatchPreflight.checkFirstLine(bytes("<html>\n"), true));
+    }
+
+    private static byte[] bytes(String content) {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,72 @@
+package com.hephaestus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.hephaestus.models.NdJsonReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for BestFitDecreasingPlanner.
+ */
+public class BestFitDecreasingPlannerTest {
+    @Test
+    public void testSmallFilesTopUpBatchesThatGreedyWouldSealEarly() {
+        List<NdJsonReference> pending = files(60, 50, 40, 30, 10, 10);
+
+        // arrival order seals 60 and 50+40 as soon as the next file doesn't fit
+        List<List<NdJsonReference>> greedy = new GreedyBatchPlanner().plan(pending, 100, 95, false);
+        assertEquals(List.of(60L, 90L), sizes(greedy));
+
+        // 60+40 and 50+30+10+10 are both full
+        List<List<NdJsonReference>> bestFit = new BestFitDecreasingPlanner().plan(pending, 100, 95, false);
+        assertEquals(List.of(100L, 100L), sizes(bestFit));
+    }
+
+    @Test
+    public void testUnderfilledBatchesWaitUnlessFlushed() {
+        List<NdJsonReference> pending = files(30, 20);
+        BatchPlanner planner = new BestFitDecreasingPlanner();
+
+        assertTrue(planner.plan(pending, 100, 95, false).isEmpty());
+        assertEquals(List.of(50L), sizes(planner.plan(pending, 100, 95, true)));
+    }
+
+    @Test
+    public void testGroupingPlannerSealsReferenceTargetsFirst() {
+        List<NdJsonReference> pending = files(40, 60, 50, 50);
+        pending.get(0).resourceType = "Observation";
+        pending.get(1).resourceType = "Observation";
+        pending.get(2).resourceType = "Patient";
+        pending.get(3).resourceType = "Practitioner";
+
+        List<List<NdJsonReference>> batches = new ResourceTypeGroupingPlanner(new BestFitDecreasingPlanner())
+                .plan(pending, 100, 95, false);
+
+        assertEquals(2, batches.size());
+        assertEquals(List.of("Patient", "Practitioner"), batches.get(0).stream().map(f -> f.resourceType).toList());
+        assertEquals(List.of("Observation", "Observation"), batches.get(1).stream().map(f -> f.resourceType).toList());
+    }
+
+    private static List<NdJsonReference> files(int... lineCounts) {
+        List<NdJsonReference> files = new ArrayList<>();
+        for (int i = 0; i < lineCounts.length; i++) {
+            NdJsonReference file = new NdJsonReference();
+            file.filename = "file-" + i + ".ndjson";
+            file.lineCount = lineCounts[i];
+            files.add(file);
+        }
+        return files;
+    }
+
+    private static List<Long> sizes(List<List<NdJsonReference>> batches) {
+        List<Long> sizes = new ArrayList<>();
+        for (List<NdJsonReference> batch : batches) {
+            sizes.add(batch.stream().mapToLong(file -> file.lineCount).sum());
+        }
+        return sizes;
+    }
+}
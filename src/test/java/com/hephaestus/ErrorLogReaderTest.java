@@ -0,0 +1,45 @@
+package com.hephaestus;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for ErrorLogReader.
+ */
+public class ErrorLogReaderTest {
+    @Test
+    public void testReadsFirstIssueAndFailedLine() throws Exception {
+        String log = "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"processing\","
+                + "\"details\":{\"coding\":[{\"code\":\"MSG_X\"}],\"text\":\"Failed to process resource at line: 12 with stream start offset: 4096\"},"
+                + "\"diagnostics\":\"Invalid reference\"},{\"severity\":\"warning\",\"code\":\"informational\"}]}\n"
+                + "\n"
+                + "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"fatal\",\"code\":\"exception\","
+                + "\"diagnostics\":\"Failed to process resource at line: 3\"}]}\n"
+                + "not json\n";
+
+        List<ErrorLogReader.Entry> entries = new ArrayList<>();
+        long count = ErrorLogReader.read(new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), entries::add);
+
+        assertEquals(3, count);
+
+        assertEquals("error", entries.get(0).severity);
+        assertEquals("processing", entries.get(0).code);
+        assertEquals("Invalid reference", entries.get(0).diagnostics);
+        assertEquals(12, entries.get(0).line);
+        assertEquals(4096, entries.get(0).offset);
+
+        assertEquals("exception", entries.get(1).code);
+        assertEquals(3, entries.get(1).line);
+        assertEquals(0, entries.get(1).offset);
+
+        assertNull(entries.get(2).code);
+        assertEquals(-1, entries.get(2).line);
+        assertEquals("not json", entries.get(2).raw);
+    }
+}
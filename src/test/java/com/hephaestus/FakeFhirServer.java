@@ -0,0 +1,127 @@
+package com.hephaestus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the $import endpoints of a FHIR service. A POST to /$import is accepted
+ * with a Content-Location, and polling that location returns 202 until the job has run for
+ * jobMillis, then the status JSON with one output per input and no errors.
+ */
+public class FakeFhirServer implements AutoCloseable {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final long jobMillis;
+    // records per input file, reported back as the output count
+    private final Map<String, Integer> lineCounts;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final AtomicInteger jobSequence = new AtomicInteger();
+
+    private static final class Job {
+        final long acceptedAt = System.currentTimeMillis();
+        final List<String> inputUrls = new ArrayList<>();
+        volatile boolean reported;
+    }
+
+    public FakeFhirServer(long jobMillis, Map<String, Integer> lineCounts) throws IOException {
+        this.jobMillis = jobMillis;
+        this.lineCounts = lineCounts;
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/$import", this::handleImport);
+        server.createContext("/_operations/import/", this::handleStatus);
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+    }
+
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    public int getJobCount() {
+        return jobs.size();
+    }
+
+    // jobs whose completed status has been handed out at least once
+    public int getReportedJobCount() {
+        return (int) jobs.values().stream().filter(job -> job.reported).count();
+    }
+
+    private void handleImport(HttpExchange exchange) throws IOException {
+        JsonNode request = mapper.readTree(exchange.getRequestBody());
+
+        Job job = new Job();
+        for (JsonNode parameter : request.path("parameter")) {
+            if (!"input".equals(parameter.path("name").asText())) {
+                continue;
+            }
+            for (JsonNode part : parameter.path("part")) {
+                if ("url".equals(part.path("name").asText())) {
+                    job.inputUrls.add(part.path("valueUri").asText());
+                }
+            }
+        }
+
+        String id = String.valueOf(jobSequence.incrementAndGet());
+        jobs.put(id, job);
+
+        exchange.getResponseHeaders().add("Content-Location", getUrl() + "/_operations/import/" + id);
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        Job job = jobs.get(path.substring(path.lastIndexOf('/') + 1));
+        if (job == null) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        if (System.currentTimeMillis() - job.acceptedAt < jobMillis) {
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+            return;
+        }
+
+        ObjectNode status = mapper.createObjectNode();
+        status.put("transactionTime", OffsetDateTime.now().toString());
+        status.put("request", getUrl() + "/$import");
+        ArrayNode output = status.putArray("output");
+        for (String inputUrl : job.inputUrls) {
+            String filename = inputUrl.substring(inputUrl.lastIndexOf('/') + 1);
+            ObjectNode entry = output.addObject();
+            entry.put("type", "Observation");
+            entry.put("count", lineCounts.getOrDefault(filename, 0));
+            entry.put("inputUrl", inputUrl);
+        }
+        status.putArray("error");
+        job.reported = true;
+
+        byte[] body = mapper.writeValueAsBytes(status);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream stream = exchange.getResponseBody()) {
+            stream.write(body);
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
@@ -0,0 +1,28 @@
+package com.hephaestus;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for IdempotencyIndex.
+ */
+public class IdempotencyIndexTest {
+    @Test
+    public void testKeyFollowsTheContentHashRatherThanTheETag() {
+        byte[] md5 = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+
+        // a re-upload of the same content gets a new ETag but keeps its MD5
+        assertEquals(IdempotencyIndex.key("a.ndjson", md5, "\"0x1\""),
+                IdempotencyIndex.key("a.ndjson", md5, "\"0x2\""));
+        assertNotEquals(IdempotencyIndex.key("a.ndjson", md5, "\"0x1\""),
+                IdempotencyIndex.key("b.ndjson", md5, "\"0x1\""));
+
+        // without an MD5 the ETag is all there is
+        assertNotEquals(IdempotencyIndex.key("a.ndjson", null, "\"0x1\""),
+                IdempotencyIndex.key("a.ndjson", null, "\"0x2\""));
+        assertEquals(64, IdempotencyIndex.key("a.ndjson", null, "\"0x1\"").length());
+    }
+}
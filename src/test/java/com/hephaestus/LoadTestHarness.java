@@ -0,0 +1,313 @@
+package com.hephaestus;
+
+import com.azure.core.credential.AccessToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hephaestus.models.AggregatorEvent;
+import com.hephaestus.models.BatchReference;
+import com.hephaestus.models.NdJsonReference;
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.durabletask.DurableTaskClient;
+import com.microsoft.durabletask.azurefunctions.DurableClientContext;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Offline load test of the whole pipeline: queue messages go through QueueProcessor, the batch
+ * aggregator, ImportBatch and TimerStatusCheck, with Azurite standing in for storage and
+ * FakeFhirServer for the FHIR service. The aggregator runs on a single thread fed from a local
+ * queue instead of the durable task runtime.
+ *
+ * Start Azurite, then run
+ * mvn test -Dtest=LoadTestHarness -Dhephaestus.loadtest=true -Dhephaestus.loadtest.files=100000
+ *
+ * The run fails if the pipeline hasn't drained after hephaestus.loadtest.timeoutMinutes, 60 by default.
+ */
+@EnabledIfSystemProperty(named = "hephaestus.loadtest", matches = "true")
+public class LoadTestHarness {
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final BlockingQueue<AggregatorEvent> events = new LinkedBlockingQueue<>();
+
+    // when each file's message was handed to QueueProcessor, in nanos
+    private final Map<String, Long> enqueuedAt = new ConcurrentHashMap<>();
+    private final List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+    private final List<Double> fillRatios = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger submittedFiles = new AtomicInteger();
+    private final AtomicInteger submittedBatches = new AtomicInteger();
+    private final AtomicInteger completedBatches = new AtomicInteger();
+    // values the system properties set by configure had before, null for unset ones
+    private final Map<String, String> previousProperties = new HashMap<>();
+
+    @Test
+    public void runPipeline() throws Exception {
+        final int fileCount = Integer.getInteger("hephaestus.loadtest.files", 10_000);
+        final long jobMillis = Long.getLong("hephaestus.loadtest.jobMillis", 2_000);
+        final long timeoutMinutes = Long.getLong("hephaestus.loadtest.timeoutMinutes", 60);
+
+        // every file is between 20k and 2M records, the last one closes the request
+        Random random = new Random(42);
+        Map<String, Integer> lineCounts = new ConcurrentHashMap<>();
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            NdJsonReference file = new NdJsonReference();
+            file.filename = String.format("loadtest-%07d.ndjson", i);
+            file.lineCount = 20_000 + random.nextInt(1_980_000);
+            file.resourceType = "Observation";
+            file.isLastFileInRequest = i == fileCount - 1;
+            lineCounts.put(file.filename, file.lineCount);
+            messages.add(mapper.writeValueAsString(file));
+        }
+
+        try (FakeFhirServer fhirServer = new FakeFhirServer(jobMillis, lineCounts)) {
+            configure(fhirServer);
+
+            Logger logger = Logger.getLogger("loadtest");
+            logger.setLevel(Level.WARNING);
+            ExecutionContext context = mock(ExecutionContext.class);
+            doReturn(logger).when(context).getLogger();
+
+            // raised events land on the local queue, as they would in the aggregator's inbox
+            DurableTaskClient client = mock(DurableTaskClient.class);
+            doAnswer(invocation -> events.add((AggregatorEvent) invocation.getArguments()[2]))
+                    .when(client).raiseEvent(anyString(), anyString(), any());
+            DurableClientContext durableContext = mock(DurableClientContext.class);
+            doReturn(client).when(durableContext).getClient();
+
+            final long tableRequestsBefore = AzureClients.getTableRequestCount();
+            final long started = System.nanoTime();
+
+            Thread aggregatorThread = new Thread(() -> runAggregator(context), "aggregator");
+            aggregatorThread.start();
+
+            ScheduledExecutorService statusChecks = Executors.newSingleThreadScheduledExecutor();
+            statusChecks.scheduleWithFixedDelay(
+                    () -> new TimerStatusCheck().run(null, durableContext, context), 1, 1, TimeUnit.SECONDS);
+
+            // the queue trigger hands out up to 16 messages at once per instance
+            ExecutorService queueProcessors = Executors.newFixedThreadPool(16);
+            DurableFunction function = new DurableFunction();
+            for (String message : messages) {
+                queueProcessors.submit(() -> {
+                    enqueuedAt.put(mapper.readValue(message, NdJsonReference.class).filename, System.nanoTime());
+                    function.runQueueProcessor(message, durableContext, context);
+                    return null;
+                });
+            }
+            queueProcessors.shutdown();
+
+            // a stuck pipeline fails the run with how far it got instead of hanging the build
+            final long deadline = started + TimeUnit.MINUTES.toNanos(timeoutMinutes);
+            try {
+                queueProcessors.awaitTermination(timeoutMinutes, TimeUnit.MINUTES);
+                while (submittedFiles.get() < fileCount || completedBatches.get() < submittedBatches.get()) {
+                    if (System.nanoTime() > deadline) {
+                        fail(String.format("Pipeline did not finish within %d minutes: %d of %d files submitted, "
+                                + "%d of %d batches completed, %d $import jobs started.", timeoutMinutes,
+                                submittedFiles.get(), fileCount, completedBatches.get(), submittedBatches.get(),
+                                fhirServer.getJobCount()));
+                    }
+                    Thread.sleep(200);
+                }
+            } finally {
+                queueProcessors.shutdownNow();
+                statusChecks.shutdownNow();
+                aggregatorThread.interrupt();
+                // an activity in progress finishes first, but a wedged one mustn't hang the build
+                aggregatorThread.join(TimeUnit.SECONDS.toMillis(30));
+            }
+            final double seconds = (System.nanoTime() - started) / 1e9;
+
+            report(fileCount, seconds, AzureClients.getTableRequestCount() - tableRequestsBefore, fhirServer);
+            assertEquals(fileCount, submittedFiles.get());
+            assertEquals(submittedBatches.get(), fhirServer.getJobCount());
+        }
+    }
+
+    // settings are read from system properties first, so later tests in the same JVM get theirs back
+    @AfterEach
+    public void restoreProperties() {
+        previousProperties.forEach((name, value) -> {
+            if (value == null) {
+                System.clearProperty(name);
+            } else {
+                System.setProperty(name, value);
+            }
+        });
+        previousProperties.clear();
+    }
+
+    private void configure(FakeFhirServer fhirServer) {
+        setProperty("FHIR_STORAGE_CONN_STR",
+                System.getProperty("hephaestus.loadtest.storage", "UseDevelopmentStorage=true"));
+        setProperty("FHIR_STORAGE_TABLE", "loadtest" + System.currentTimeMillis());
+        setProperty("FHIR_STORAGE_CONTAINER", "loadtest");
+        setProperty("FHIR_SERVER_URL", fhirServer.getUrl());
+        setProperty("FHIR_IMPORT_MODE", "InitialLoad");
+        setProperty("SCAN_NDJSON_FILES", "false");
+        setProperty("COMPACT_SMALL_FILES", "false");
+        // the generated files are never uploaded
+        setProperty("PREFLIGHT_VALIDATION", "false");
+        setProperty("IDEMPOTENCY_INDEX", "false");
+
+        FhirTokenProvider.primeToken(fhirServer.getUrl() + "/.default",
+                new AccessToken("loadtest", OffsetDateTime.now().plusDays(1)));
+
+        AzureClients.getTableClient().createTable();
+        if (!AzureClients.getBlobContainerClient().exists()) {
+            AzureClients.getBlobContainerClient().create();
+        }
+    }
+
+    private void setProperty(String name, String value) {
+        previousProperties.putIfAbsent(name, System.getProperty(name));
+        System.setProperty(name, value);
+    }
+
+    // the orchestration loop of DurableFunction.batchAggregator, without replay
+    private void runAggregator(ExecutionContext context) {
+        BatchAggregator aggregator = new BatchAggregator(null, runtimeOf(context));
+        final int checkpointInterval = aggregator.getSettings().CheckpointInterval;
+
+        try {
+            while (true) {
+                Duration timeout = aggregator.nextTimeout();
+                AggregatorEvent event = timeout == null ? events.take()
+                        : events.poll(timeout.toMillis(), TimeUnit.MILLISECONDS);
+
+                if (event == null) {
+                    aggregator.onIdle();
+                } else if (event.CompletedBatchId != null) {
+                    completedBatches.incrementAndGet();
+                    aggregator.onImportCompleted(event.CompletedBatchId);
+                } else {
+                    aggregator.onFile(event.File);
+                    if (aggregator.uncheckpointedChanges() >= checkpointInterval) {
+                        aggregator.checkpoint();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            aggregator.checkpoint();
+        }
+    }
+
+    // runs activities in process, with inputs and outputs serialized the way the runtime would
+    private BatchAggregator.Runtime runtimeOf(ExecutionContext context) {
+        return new BatchAggregator.Runtime() {
+            @Override
+            public <V> V callActivity(String name, Object input, Class<V> returnType) {
+                Object result;
+                switch (name) {
+                    case "LoadAggregatorSettings":
+                        result = new DurableFunction().loadAggregatorSettings(null, context);
+                        break;
+                    case "SaveBatchReference":
+                        result = new TableFunction().saveToTable(mapper.convertValue(input, BatchReference.class),
+                                context);
+                        break;
+                    case "LoadBatchReference":
+                        result = new TableFunction().loadFromTable((String) input, context);
+                        break;
+                    case "LoadBatchReferenceById":
+                        result = new TableFunction().loadByIdFromTable((String) input, context);
+                        break;
+                    case "ListBatchIds":
+                        result = new TableFunction().listBatchIds((String) input, context);
+                        break;
+                    case "ImportBatch":
+                        result = importBatch((String) input, context);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Activity " + name + " is not part of the load test.");
+                }
+                return mapper.convertValue(result, returnType);
+            }
+
+            @Override
+            public <V> List<V> callActivities(String name, List<?> inputs, Class<V> returnType) {
+                // like the orchestration, a failed call has a null result and the others go on
+                return inputs.parallelStream().map(input -> {
+                    try {
+                        return callActivity(name, input, returnType);
+                    } catch (RuntimeException e) {
+                        context.getLogger().log(Level.WARNING, "Activity " + name + " failed", e);
+                        return null;
+                    }
+                }).toList();
+            }
+
+            @Override
+            public Instant now() {
+                return Instant.now();
+            }
+
+            @Override
+            public String instanceId() {
+                return DurableFunction.AGGREGATOR_INSTANCE_ID;
+            }
+        };
+    }
+
+    private BatchReference importBatch(String batchId, ExecutionContext context) {
+        final long now = System.nanoTime();
+        BatchReference submitted = new FhirImportFunction().importBatch(batchId, context);
+        for (NdJsonReference file : submitted.Files) {
+            Long enqueued = enqueuedAt.get(file.filename);
+            if (enqueued != null) {
+                latencies.add(now - enqueued);
+            }
+        }
+
+        fillRatios.add(submitted.FillRatio);
+        submittedFiles.addAndGet(submitted.Files.size());
+        submittedBatches.incrementAndGet();
+        return submitted;
+    }
+
+    private void report(int fileCount, double seconds, long tableRequests, FakeFhirServer fhirServer) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        double fillMean = fillRatios.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double fillMin = fillRatios.stream().mapToDouble(Double::doubleValue).min().orElse(0);
+
+        System.out.printf("files: %d, batches: %d, $import jobs: %d, elapsed: %.1f s%n",
+                fileCount, submittedBatches.get(), fhirServer.getJobCount(), seconds);
+        System.out.printf("messages/sec: %.1f%n", fileCount / seconds);
+        System.out.printf("table operations per file: %.2f%n", (double) tableRequests / fileCount);
+        System.out.printf("batch fill ratio: mean %.3f, min %.3f%n", fillMean, fillMin);
+        System.out.printf("queue to submission latency: p50 %d ms, p99 %d ms%n",
+                percentileMillis(sorted, 0.50), percentileMillis(sorted, 0.99));
+    }
+
+    private static long percentileMillis(List<Long> sortedNanos, double percentile) {
+        if (sortedNanos.isEmpty()) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.size()) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos.get(Math.max(0, index)));
+    }
+}
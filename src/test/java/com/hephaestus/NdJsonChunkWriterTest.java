@@ -0,0 +1,121 @@
+package com.hephaestus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+
+import com.hephaestus.models.NdJsonReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for NdJsonChunkWriter, writing to memory with blocks small enough that lines are split
+ * across them.
+ */
+public class NdJsonChunkWriterTest {
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"1\"}\n";
+    private static final String OBSERVATION = "{\"resourceType\":\"Observation\",\"id\":\"2\"}\n";
+
+    @Test
+    public void testChunksAreCutAfterTheLastLineOfEachChunk() throws Exception {
+        String content = PATIENT + PATIENT + "\n" + OBSERVATION + OBSERVATION + PATIENT;
+
+        for (int blockSize = 1; blockSize <= content.length() + 1; blockSize++) {
+            MemorySink sink = new MemorySink();
+            List<NdJsonReference> chunks = write(sink, content.getBytes(StandardCharsets.UTF_8), "big", 2, blockSize);
+
+            assertEquals(3, chunks.size());
+            assertEquals("big-part-00000.ndjson", chunks.get(0).filename);
+            assertEquals("big-part-00002.ndjson", chunks.get(2).filename);
+            assertEquals(2, chunks.get(0).lineCount);
+            assertEquals(2, chunks.get(1).lineCount);
+            assertEquals(1, chunks.get(2).lineCount);
+            assertEquals("Patient", chunks.get(0).resourceType);
+            assertEquals("Observation", chunks.get(1).resourceType);
+
+            // blank lines don't count, but go with the chunk they are in
+            assertEquals(PATIENT + PATIENT, sink.content("big-part-00000.ndjson"));
+            assertEquals("\n" + OBSERVATION + OBSERVATION, sink.content("big-part-00001.ndjson"));
+            assertEquals(PATIENT, sink.content("big-part-00002.ndjson"));
+        }
+    }
+
+    @Test
+    public void testLastLineWithoutNewlineIsCounted() throws Exception {
+        String content = PATIENT + OBSERVATION.trim();
+        MemorySink sink = new MemorySink();
+
+        List<NdJsonReference> chunks = write(sink, content.getBytes(StandardCharsets.UTF_8), "tail", 10, 5);
+
+        assertEquals(1, chunks.size());
+        assertEquals(2, chunks.get(0).lineCount);
+        // a chunk with more than one resource type has none
+        assertNull(chunks.get(0).resourceType);
+        assertEquals(content, sink.content("tail-part-00000.ndjson"));
+
+        assertTrue(write(new MemorySink(), new byte[0], "empty", 10, 5).isEmpty());
+    }
+
+    @Test
+    public void testGzippedInputIsInflatedIntoPlainChunks() throws Exception {
+        String content = PATIENT + OBSERVATION + PATIENT;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        MemorySink sink = new MemorySink();
+        List<NdJsonReference> chunks;
+        try (NdJsonChunkWriter writer = new NdJsonChunkWriter(sink, 16, 2);
+                InputStream input = BlobFunction.openNdJson("extract.ndjson.gz",
+                        new ByteArrayInputStream(compressed.toByteArray()))) {
+            chunks = writer.write(input, BlobFunction.chunkBaseName("extract.ndjson.gz"), 2);
+        }
+
+        assertEquals(2, chunks.size());
+        assertEquals(PATIENT + OBSERVATION, sink.content("extract.gz-part-00000.ndjson"));
+        assertEquals(PATIENT, sink.content("extract.gz-part-00001.ndjson"));
+        // the plain file of the same name splits into chunks of its own
+        assertEquals("extract", BlobFunction.chunkBaseName("extract.ndjson"));
+    }
+
+    private static List<NdJsonReference> write(MemorySink sink, byte[] content, String baseName, long linesPerChunk,
+            int blockSize) throws Exception {
+        try (NdJsonChunkWriter writer = new NdJsonChunkWriter(sink, blockSize, 4)) {
+            return writer.write(new ByteArrayInputStream(content), baseName, linesPerChunk);
+        }
+    }
+
+    // keeps staged blocks until their chunk is committed, like a block blob
+    private static class MemorySink implements NdJsonChunkWriter.BlockSink {
+        final Map<String, byte[]> stagedBlocks = new ConcurrentHashMap<>();
+        final Map<String, String> committed = new ConcurrentHashMap<>();
+
+        @Override
+        public void stageBlock(String filename, String blockId, byte[] data, int length) {
+            byte[] block = new byte[length];
+            System.arraycopy(data, 0, block, 0, length);
+            stagedBlocks.put(filename + "/" + blockId, block);
+        }
+
+        @Override
+        public void commitBlockList(String filename, List<String> blockIds) {
+            ByteArrayOutputStream blob = new ByteArrayOutputStream();
+            for (String blockId : blockIds) {
+                blob.writeBytes(stagedBlocks.get(filename + "/" + blockId));
+            }
+            committed.put(filename, blob.toString(StandardCharsets.UTF_8));
+        }
+
+        String content(String filename) {
+            return committed.get(filename);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.hephaestus;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.hephaestus.models.NdJsonScanResult;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for NdJsonScanner, run against in-memory content with ranges small enough that
+ * lines are split across them.
+ */
+public class NdJsonScannerTest {
+    private static final String CONTENT = "{\"resourceType\":\"Patient\",\"id\":\"1\"}\n"
+            + "\n"
+            + "{\"id\":\"2\",\"meta\":{\"resourceType\":\"Nested\"},\"resourceType\":\"Observation\"}\r\n"
+            + "   \n"
+            + "{\"resourceType\":\"Patient\",\"id\":\"3\",\"name\":[{\"family\":\"Doe\"}]}\n"
+            + "{\"resourceType\":\"Encounter\",\"id\":\"4\"}";
+
+    @Test
+    public void testScanCountsRecordsAndTypesAcrossRangeSizes() throws Exception {
+        byte[] bytes = CONTENT.getBytes(StandardCharsets.UTF_8);
+
+        for (int rangeSize = 1; rangeSize <= bytes.length + 1; rangeSize++) {
+            NdJsonScanResult result = scan(bytes, rangeSize);
+
+            assertEquals(4, result.lineCount);
+            assertEquals(Map.of("Patient", 2L, "Observation", 1L, "Encounter", 1L), result.resourceTypeCounts);
+        }
+    }
+
+    @Test
+    public void testScanHandlesTrailingNewlineAndEmptyContent() throws Exception {
+        byte[] bytes = (CONTENT + "\n").getBytes(StandardCharsets.UTF_8);
+        assertEquals(4, scan(bytes, 7).lineCount);
+
+        assertEquals(0, scan(new byte[0], 7).lineCount);
+    }
+
+    private static NdJsonScanResult scan(byte[] bytes, long rangeSize) throws Exception {
+        return NdJsonScanner.scan("test.ndjson", bytes.length,
+                (offset, count) -> new ByteArrayInputStream(bytes, (int) offset, (int) count), 4, rangeSize);
+    }
+}
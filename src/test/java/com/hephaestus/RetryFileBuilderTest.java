@@ -0,0 +1,60 @@
+package com.hephaestus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for RetryFileBuilder, copying the lines an error log reports from an in-memory source.
+ */
+public class RetryFileBuilderTest {
+    private static final String SOURCE = "{\"resourceType\":\"Patient\",\"id\":\"a\"}\n"
+            + "\n"
+            + "{\"resourceType\":\"Patient\",\"id\":\"b\"}\n"
+            + "{\"resourceType\":\"Patient\",\"id\":\"c\"}\n"
+            + "{\"resourceType\":\"Patient\",\"id\":\"d\"}";
+
+    @Test
+    public void testCopiesTheReportedLinesOfEveryOffset() throws Exception {
+        byte[] source = SOURCE.getBytes(StandardCharsets.UTF_8);
+        long lineThree = SOURCE.indexOf("{\"resourceType\":\"Patient\",\"id\":\"c\"}");
+
+        // line 2 counts the blank line, an offset inside a line starts at the next one, the last
+        // line has no newline and one error has no line at all
+        String errorLog = error("Failed to process resource at line: 2")
+                + error("Failed to process resource at line: 1 with stream start offset: " + lineThree)
+                + error("Failed to process resource at line: 0 with stream start offset: " + (lineThree - 10))
+                + error("Resource is invalid");
+
+        Map<Long, TreeSet<Long>> failedLines = new TreeMap<>();
+        long unlocated = RetryFileBuilder.collectFailedLines(
+                new ByteArrayInputStream(errorLog.getBytes(StandardCharsets.UTF_8)), failedLines);
+        assertEquals(1, unlocated);
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int copied = 0;
+        for (Map.Entry<Long, TreeSet<Long>> lines : failedLines.entrySet()) {
+            long offset = lines.getKey();
+            int start = (int) (offset == 0 ? 0 : offset - 1);
+            copied += RetryFileBuilder.copyLines(new ByteArrayInputStream(source, start, source.length - start),
+                    offset, lines.getValue(), output);
+        }
+
+        assertEquals(3, copied);
+        assertEquals("{\"resourceType\":\"Patient\",\"id\":\"b\"}\n"
+                + "{\"resourceType\":\"Patient\",\"id\":\"c\"}\n"
+                + "{\"resourceType\":\"Patient\",\"id\":\"d\"}\n", output.toString(StandardCharsets.UTF_8));
+    }
+
+    private static String error(String text) {
+        return "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":\"error\",\"code\":\"processing\","
+                + "\"details\":{\"text\":\"" + text + "\"}}]}\n";
+    }
+}
@@ -0,0 +1,66 @@
+package com.hephaestus.models;
+
+import java.util.List;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.jupiter.api.Test;
+
+import com.hephaestus.models.BatchStatusResponse.Error;
+import com.hephaestus.models.BatchStatusResponse.Output;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit test for the output/error merge in BatchStatusResponse.
+ */
+public class BatchStatusResponseTest {
+    @Test
+    public void testGetAllResultsPairsOutputsWithErrors() {
+        BatchStatusResponse response = new BatchStatusResponse();
+        response.setOutput(List.of(output("part1", 74), output("part2", 64)));
+        response.setError(List.of(error("part2", 2), error("part3", 5)));
+
+        List<Pair<Output, Error>> results = response.getAllResults();
+
+        assertEquals(3, results.size());
+
+        assertEquals("part1", results.get(0).getLeft().getInputUrl());
+        assertNull(results.get(0).getRight());
+
+        assertEquals("part2", results.get(1).getLeft().getInputUrl());
+        assertEquals(2, results.get(1).getRight().getCount());
+
+        // an error without a matching output keeps the left side empty
+        assertNull(results.get(2).getLeft());
+        assertEquals("part3", results.get(2).getRight().getInputUrl());
+
+        assertEquals(138, response.getTotalSuccessCount());
+        assertEquals(7, response.getTotalErrorCount());
+    }
+
+    @Test
+    public void testGetAllResultsHandlesMissingLists() {
+        BatchStatusResponse response = new BatchStatusResponse();
+        response.setOutput(List.of(output("part1", 10)));
+
+        List<Pair<Output, Error>> results = response.getAllResults();
+
+        assertEquals(1, results.size());
+        assertEquals(10, response.getTotalSuccessCount());
+        assertEquals(0, response.getTotalErrorCount());
+    }
+
+    private static Output output(String inputUrl, int count) {
+        Output output = new Output();
+        output.setInputUrl(inputUrl);
+        output.setCount(count);
+        return output;
+    }
+
+    private static Error error(String inputUrl, int count) {
+        Error error = new Error();
+        error.setInputUrl(inputUrl);
+        error.setCount(count);
+        return error;
+    }
+}